@@ -0,0 +1,69 @@
+package banking;
+
+import org.sqlite.SQLiteDataSource;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Builds the accounts and databases the benchmarks run against.
+ */
+final class BenchmarkData {
+    private static final long IIN_PREFIX = 400000L * 1_000_000_000L;
+
+    private BenchmarkData() {
+    }
+
+    /**
+     * Makes the card number of the n-th benchmark account. Numbers are sequential so building millions of them is
+     * cheap, and each carries a valid check digit.
+     * @param n the index of the account.
+     * @return a valid 16 digit card number.
+     */
+    static String cardNumber(int n) {
+        long prefix = IIN_PREFIX + n;
+        return CardNumbers.unpack(prefix * 10 + Luhn.checkDigit(prefix));
+    }
+
+    /**
+     * Fills a new HashAccountStore with accounts that are already in the database.
+     * @param count the number of accounts to create.
+     * @return the filled store.
+     */
+    static HashAccountStore createStore(int count) {
+        HashAccountStore store = new HashAccountStore(count);
+        for (int i = 0; i < count; i++) {
+            Account account = new Account(cardNumber(i), "1234", 1_000_000);
+            account.setInDatabase(true);
+            store.add(account);
+        }
+        return store;
+    }
+
+    /**
+     * Creates a temporary SQLite database holding a card table with the given number of accounts.
+     * @param count the number of accounts to insert.
+     * @return the repository of the new database; the file is deleted when the JVM exits.
+     * @throws IOException if the temporary file cannot be created.
+     * @throws SQLException if the database cannot be created.
+     */
+    static AccountRepository createDatabase(int count) throws IOException, SQLException {
+        File file = File.createTempFile("banking-bench", ".s3db");
+        file.deleteOnExit();
+
+        SQLiteDataSource dataSource = new SQLiteDataSource();
+        dataSource.setUrl("jdbc:sqlite:" + file.getAbsolutePath());
+        AccountRepository repository = new SqliteAccountRepository(dataSource);
+
+        List<Account> accounts = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            accounts.add(new Account(cardNumber(i), "1234", 1_000_000));
+        }
+        repository.saveAll(accounts, Collections.emptyList());
+        return repository;
+    }
+}
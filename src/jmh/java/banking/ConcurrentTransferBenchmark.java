@@ -0,0 +1,65 @@
+package banking;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stresses TransferService with random transfers from several threads at once, and fails the run if the total
+ * amount of money in the accounts is not the same afterwards.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Threads(Threads.MAX)
+public class ConcurrentTransferBenchmark {
+    private static final long INITIAL_BALANCE = 100_000;
+
+    @Param({"16", "1000", "100000"})
+    public int accountCount;
+
+    private final TransferService transferService = new TransferService(account -> { });
+    private Account[] accounts;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        accounts = new Account[accountCount];
+        for (int i = 0; i < accountCount; i++) {
+            accounts[i] = new Account(BenchmarkData.cardNumber(i), "1234", INITIAL_BALANCE);
+        }
+    }
+
+    @Benchmark
+    public TransferService.Result transfer() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        Account source = accounts[random.nextInt(accountCount)];
+        Account target = accounts[random.nextInt(accountCount)];
+        return transferService.transfer(source, target, random.nextInt(1, 100));
+    }
+
+    /**
+     * Checks that no transfer created or lost money.
+     */
+    @TearDown(Level.Iteration)
+    public void checkMoneyIsConserved() {
+        long total = 0;
+        for (Account account : accounts) {
+            total += account.getBalance();
+        }
+        if (total != INITIAL_BALANCE * accountCount) {
+            throw new IllegalStateException("Expected a total of " + INITIAL_BALANCE * accountCount
+                    + " but found " + total);
+        }
+    }
+}
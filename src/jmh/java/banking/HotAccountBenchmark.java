@@ -0,0 +1,57 @@
+package banking;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deposits into a single card from every thread at once, with the card flagged as a hot account or not, and fails
+ * the run if folding the credits held apart changes the card's balance.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Threads(Threads.MAX)
+public class HotAccountBenchmark {
+
+    @Param({"false", "true"})
+    public boolean hot;
+
+    private final TransferService transferService = new TransferService(account -> { });
+    private Account account;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        account = new Account(BenchmarkData.cardNumber(0), "1234", 0);
+        HotAccounts.flag(hot ? Collections.singletonList(account.getNumber()) : Collections.emptyList());
+    }
+
+    @Benchmark
+    public void deposit() {
+        transferService.deposit(account, 1);
+    }
+
+    /**
+     * Checks that folding moves the credits into the stored balance without losing any.
+     */
+    @TearDown(Level.Iteration)
+    public void checkNoDepositIsLost() {
+        long before = account.getBalance();
+        transferService.fold(account);
+        if (account.getStoredBalance() != before || account.getBalance() != before) {
+            throw new IllegalStateException("Folding changed the balance from " + before + " to "
+                    + account.getBalance());
+        }
+    }
+}
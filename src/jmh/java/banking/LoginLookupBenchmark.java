@@ -0,0 +1,44 @@
+package banking;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures finding the Account for a card number and PIN among a given number of accounts.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class LoginLookupBenchmark {
+    private static final int LOOKUP_CARDS = 1024;
+
+    @Param({"1000", "100000", "1000000", "10000000"})
+    public int accountCount;
+
+    private AccountStore accounts;
+    private String[] cardNumbers;
+    private int next = 0;
+
+    @Setup
+    public void setUp() {
+        accounts = BenchmarkData.createStore(accountCount);
+        cardNumbers = new String[LOOKUP_CARDS];
+        for (int i = 0; i < LOOKUP_CARDS; i++) {
+            cardNumbers[i] = BenchmarkData.cardNumber((int) ((long) i * accountCount / LOOKUP_CARDS));
+        }
+    }
+
+    @Benchmark
+    public Account login() {
+        next = (next + 1) & (LOOKUP_CARDS - 1);
+        return Main.findLoginAccount(accounts, cardNumbers[next], "1234");
+    }
+}
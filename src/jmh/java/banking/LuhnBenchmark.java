@@ -0,0 +1,36 @@
+package banking;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures Luhn validation of a card number. Run with "-prof gc" to confirm that validation does not allocate.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class LuhnBenchmark {
+    private final String cardNumber = BenchmarkData.cardNumber(42);
+    private final long packedCardNumber = CardNumbers.pack(cardNumber);
+
+    @Benchmark
+    public boolean validateString() {
+        return Luhn.isValid(cardNumber);
+    }
+
+    @Benchmark
+    public boolean validatePacked() {
+        return Luhn.isValid(packedCardNumber);
+    }
+
+    @Benchmark
+    public int checkDigit() {
+        return Luhn.checkDigit(packedCardNumber / 10);
+    }
+}
@@ -0,0 +1,72 @@
+package banking;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures loading the whole card table at startup and flushing every account back at the end of a session,
+ * against a temporary SQLite file holding a given number of accounts.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class PersistenceBenchmark {
+
+    @Param({"1000", "100000", "1000000", "10000000"})
+    public int accountCount;
+
+    private AccountRepository repository;
+    private HashAccountStore accounts;
+    private final DirtyAccounts dirty = new DirtyAccounts();
+
+    @Setup
+    public void setUp() throws IOException, SQLException {
+        repository = BenchmarkData.createDatabase(accountCount);
+        accounts = new HashAccountStore(accountCount);
+        Main.getExistingAccounts(accounts, repository);
+    }
+
+    @TearDown
+    public void tearDown() {
+        repository.close();
+    }
+
+    /**
+     * Flags every account as changed so each flush writes all of them.
+     */
+    @Setup(Level.Invocation)
+    public void changeAllAccounts() {
+        for (Account account : accounts) {
+            account.setUnsaved(true);
+            dirty.markChanged(account);
+        }
+    }
+
+    @Benchmark
+    public AccountStore getExistingAccounts() {
+        HashAccountStore loaded = new HashAccountStore(accountCount);
+        Main.getExistingAccounts(loaded, repository);
+        return loaded;
+    }
+
+    @Benchmark
+    public void saveChanges() {
+        Main.saveChanges(dirty, repository);
+    }
+}
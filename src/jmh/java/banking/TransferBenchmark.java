@@ -0,0 +1,45 @@
+package banking;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures looking up two accounts among a given number of accounts and transferring money between them.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TransferBenchmark {
+
+    @Param({"1000", "100000", "1000000", "10000000"})
+    public int accountCount;
+
+    private final TransferService transferService = new TransferService(account -> { });
+    private AccountStore accounts;
+    private String firstCard;
+    private String secondCard;
+    private boolean forward = true;
+
+    @Setup
+    public void setUp() {
+        accounts = BenchmarkData.createStore(accountCount);
+        firstCard = BenchmarkData.cardNumber(0);
+        secondCard = BenchmarkData.cardNumber(accountCount - 1);
+    }
+
+    @Benchmark
+    public TransferService.Result transfer() {
+        forward = !forward;  // Alternates direction so neither balance runs out.
+        Account source = accounts.get(forward ? firstCard : secondCard);
+        Account target = accounts.get(forward ? secondCard : firstCard);
+        return transferService.transfer(source, target, 1);
+    }
+}
@@ -1,19 +1,34 @@
 package banking;
 
-import java.util.Random;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.ThreadLocalRandom;
 
 public class Account {
     /**
      * Constants used to generate card numbers.
      */
     private static final String IIN = "400000";
-    private static final int ACCOUNT_NUM_LENGTH = 9;
-    private static final int LUHN_MAX = 9;
-    private static final int CHECK_SUM_UPPER_BOUND = 10;
+    static final int ACCOUNT_IDENTIFIER_BOUND = 1_000_000_000;  // Account identifiers have 9 digits.
+    private static final long IIN_PREFIX = Long.parseLong(IIN) * ACCOUNT_IDENTIFIER_BOUND;
+    private static final int PIN_BOUND = 10_000;
+
+    /**
+     * Gives atomic access to the balance field, so it can be updated without locks.
+     */
+    private static final VarHandle BALANCE;
+
+    static {
+        try {
+            BALANCE = MethodHandles.lookup().findVarHandle(Account.class, "balance", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
 
     private final String number;
     private final String pin;
-    private double balance = 0;
+    private volatile long balance = 0;   // In minor units (cents).
     private boolean isUnsaved = false;  // Used to control whether Account instance gets updated in database.
     private boolean isInDatabase = false;         // Used to control whether Account instance gets saved in database.
 
@@ -25,10 +40,10 @@ public class Account {
     /**
      * Creates an account from database records. Only to be used by SELECT statements on database.
      * @param number the Account's card number.
-     * @param pin the Account's PIN.
-     * @param balance the current Balance of the account.
+     * @param pin the Account's PIN, or null if the PIN is only kept as a salted hash.
+     * @param balance the current Balance of the account, in cents.
      */
-    public Account(String number, String pin, double balance) {
+    public Account(String number, String pin, long balance) {
         this.number = number;
         this.pin = pin;
         this.balance = balance;
@@ -40,116 +55,52 @@ public class Account {
      * @return <code>String</code> 4 digit PIN number for account.
      */
     private String createPin() {
-        Random randomNum = new Random();
-        String first = String.valueOf((randomNum.nextInt(10)));
-        String second = String.valueOf((randomNum.nextInt(10)));
-        String third = String.valueOf((randomNum.nextInt(10)));
-        String fourth = String.valueOf((randomNum.nextInt(10)));
-        return first + second + third + fourth;
+        return formatPin(ThreadLocalRandom.current().nextInt(PIN_BOUND));
     }
 
-
     /**
-     * Combines IIN, account identifier, and the check sum for a complete valid credit card number.
-     * @return the full card number for the account.
+     * Formats a PIN as 4 digits, keeping any leading zeros.
+     * @param pin the PIN as a number from 0 to 9999, or -1 for no PIN.
+     * @return the 4 digit PIN, or null for no PIN.
      */
-    private String createCardNumber() {
-        String accountIdentifier = getAccountIdentifier();
-        String cardPrefix = IIN + accountIdentifier;
-        int[] convertedCardPrefix = convertStringToArray(cardPrefix); // Converts the prefix string to array of ints.
-        String checkSum = getCheckSum(convertedCardPrefix);
-        return cardPrefix + checkSum;
-    }
-
-    /**
-     * Takes in the first 15 digits of a card number and generates a valid check sum according to the Luhn Algorithm.
-     * @param prefixArray an array of integers representing the first 15 digits of a card number.
-     * @return the valid check sum based on the prefixArray.
-     */
-    protected String getCheckSum(int[] prefixArray) {
-        int[] updatedArray = new int[prefixArray.length];
-        /*
-        For every number in prefix array add the number to a new array.
-        If the index + 1 is odd, double it before adding to the new array.
-        Also, if the final number you're adding to the new array is > 9, subtract 9 before adding to array.
-         */
-        for (int i = 0; i < prefixArray.length; i++) {
-            int currentStep = i + 1; // step in card number; need to reuse i + 1;
-            if (currentStep % 2 == 0 && prefixArray[i] > LUHN_MAX) {
-                updatedArray[i] = prefixArray[i] - LUHN_MAX;
-            } else if (currentStep % 2 == 0) {
-                updatedArray[i] = prefixArray[i];
-            } else if ((2 * prefixArray[i]) > LUHN_MAX) {
-                updatedArray[i] = (2 * prefixArray[i]) - 9;
-            } else {
-                updatedArray[i] = (2 * prefixArray[i]);
-            }
+    static String formatPin(int pin) {
+        if (pin < 0) {
+            return null;
         }
-        int sum = sumArray(updatedArray); // Gets the sum of the populated array to pass to convertSumToCheck().
-
-        return convertSumToCheck(sum); // Gets and returns the check sum from the sum of above algorithm.
-    }
-
-    /**
-     * Takes an array of ints and returns their sum.
-     * @param arr the array of integers to sum.
-     * @return the sum of the given array.
-     */
-    private int sumArray(int[] arr) {
-        int sum = 0;
-        for (int j : arr) {
-            sum += j;
+        char[] digits = new char[4];
+        for (int i = 3; i >= 0; i--) {
+            digits[i] = (char) ('0' + pin % 10);
+            pin /= 10;
         }
-        return sum;
+        return new String(digits);
     }
 
     /**
-     * Takes a string representing a credit card number prefix and converts it to an array of individual integers.
-     * @param prefix string representing card number prefix.
-     * @return integer array of credit card number prefix.
+     * Turns a PIN into the number that fixed size records hold.
+     * @param pin the 4 digit PIN, or null for no PIN.
+     * @return the PIN as a number from 0 to 9999, or -1 for no PIN.
      */
-    private int[] convertStringToArray(String prefix) {
-        char[] separateString = prefix.toCharArray();   // Separates each character in the string.
-
-        int[] prefixArray = new int[separateString.length]; // Makes a new array to add converted integers to.
-
-        for (int i = 0; i < separateString.length; i++) {
-            prefixArray[i] = Integer.parseInt(String.valueOf(separateString[i]));
-        }
-
-        return prefixArray;
+    static short packPin(String pin) {
+        return pin == null ? -1 : Short.parseShort(pin);
     }
 
     /**
-     * Takes the sum generated within getCheckSum() and creates a check sum according to the Luhn Algorithm.
-     * @param sum the value produced inside the getCheckSum() method.
-     * @return the value of the check sum.
+     * Combines IIN, a random account identifier, and the check sum for a complete valid credit card number.
+     * @return the full card number for the account.
      */
-    private String convertSumToCheck(int sum) {
-        int checkSum = 0;
-
-        for (int i = 0; i < CHECK_SUM_UPPER_BOUND; i++) {
-            if ((sum + i) % 10 == 0) {
-                checkSum =  i;
-            }
-        }
-
-        return String.valueOf(checkSum);
+    private String createCardNumber() {
+        return CardNumbers.unpack(cardNumberFor(ThreadLocalRandom.current().nextInt(ACCOUNT_IDENTIFIER_BOUND)));
     }
 
     /**
-     * Generates a random account identifier for a new card (digits 7 through 15).
-     * @return the randomly generated account identifier.
+     * Builds the card number for an account identifier (digits 7 through 15) by adding the IIN in front and the
+     * Luhn check digit at the end.
+     * @param accountIdentifier the account identifier, from 0 to 999999999.
+     * @return the full card number, packed into a long.
      */
-    private String getAccountIdentifier() {
-        Random randomNum = new Random();
-        StringBuilder accountNumTemp = new StringBuilder();
-        for (int i = 1; i <= ACCOUNT_NUM_LENGTH; i++) {
-            int randomInt = randomNum.nextInt(10);
-            String s = String.valueOf(randomInt);
-            accountNumTemp.append(s);
-        }
-        return accountNumTemp.toString();
+    static long cardNumberFor(long accountIdentifier) {
+        long cardPrefix = IIN_PREFIX + accountIdentifier;
+        return cardPrefix * 10 + Luhn.checkDigit(cardPrefix);
     }
 
     /**
@@ -162,15 +113,23 @@ public class Account {
 
     /**
      *
-     * @return current balance for account.
+     * @return current balance for account, in cents, including any credits held apart for a hot account.
+     */
+    public long getBalance() {
+        return getStoredBalance() + HotAccounts.pendingCredits(number);
+    }
+
+    /**
+     *
+     * @return the balance held by the account itself, in cents, without credits held apart for a hot account.
      */
-    public double getBalance() {
+    protected long getStoredBalance() {
         return balance;
     }
 
     /**
      *
-     * @return PIN number for account.
+     * @return PIN number for account, or null if the PIN is only kept as a salted hash.
      */
     public String getPin() {
         return pin;
@@ -178,12 +137,31 @@ public class Account {
 
     /**
      *
-     * @param balance new balance to set for account.
+     * @param balance new stored balance to set for account, in cents.
      */
-    public void setBalance(double balance) {
+    public void setBalance(long balance) {
         this.balance = balance;
     }
 
+    /**
+     * Atomically adds an amount to the stored balance.
+     * @param amount the amount to add, in cents; may be negative.
+     * @return the new stored balance, in cents.
+     */
+    public long addToBalance(long amount) {
+        return (long) BALANCE.getAndAdd(this, amount) + amount;
+    }
+
+    /**
+     * Atomically sets the stored balance if it still holds the expected value.
+     * @param expected the balance the caller last read, in cents.
+     * @param balance the new balance, in cents.
+     * @return true if the balance was set, false if another thread changed it first.
+     */
+    public boolean compareAndSetBalance(long expected, long balance) {
+        return BALANCE.compareAndSet(this, expected, balance);
+    }
+
     /**
      *
      * @return true if an Account has unsaved changes.
@@ -225,7 +203,7 @@ public class Account {
         return "Account{" +
                 "cardNumber='" + number + '\'' +
                 ", pin='" + pin + '\'' +
-                ", balance=" + balance +
+                ", balance=" + Money.format(getBalance()) +
                 '}';
     }
 }
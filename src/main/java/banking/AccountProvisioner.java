@@ -0,0 +1,217 @@
+package banking;
+
+import org.sqlite.SQLiteDataSource;
+
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Creates large batches of new card accounts at once.
+ *
+ * Cards are generated in parallel, one partition of the account identifier space per thread, so two threads can
+ * never produce the same card. Each new card is checked against a Bloom filter of every card already in the
+ * database and every card generated so far; a card the filter might already hold is simply regenerated. Generated
+ * cards are streamed in chunks to a single writer that inserts them in batches within one transaction, so either
+ * the whole batch is created or none of it is.
+ */
+public class AccountProvisioner {
+    private static final int CHUNK_SIZE = 10_000;
+    private static final double FALSE_POSITIVE_RATE = 0.01;
+    private static final int PIN_BOUND = 10_000;
+
+    /*
+    At most this share of the identifier space may be in use, so regenerating a duplicate card stays cheap.
+     */
+    private static final long MAX_CARDS = Account.ACCOUNT_IDENTIFIER_BOUND / 2;
+
+    private final SQLiteDataSource data;
+    private final int threads;
+
+    /**
+     * Creates a provisioner that generates cards on every available processor.
+     * @param data the connection to the database new cards are inserted into.
+     */
+    public AccountProvisioner(SQLiteDataSource data) {
+        this(data, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a provisioner.
+     * @param data the connection to the database new cards are inserted into.
+     * @param threads the number of threads generating cards.
+     */
+    public AccountProvisioner(SQLiteDataSource data, int threads) {
+        this.data = data;
+        this.threads = threads;
+    }
+
+    /**
+     * Creates new accounts with unique card numbers and random PINs and inserts them into the database.
+     * @param count the number of accounts to create.
+     * @param cardOutput receives a "number,pin" line for each new card, or null if the cards need not be listed.
+     * @throws SQLException if the cards cannot be inserted; no card is inserted in that case.
+     * @throws InterruptedException if interrupted while waiting for generated cards.
+     */
+    public void provision(int count, PrintWriter cardOutput) throws SQLException, InterruptedException {
+        try (Connection con = data.getConnection()) {
+            long existing = countCards(con);
+            if (existing + count > MAX_CARDS) {
+                throw new IllegalArgumentException("Cannot create " + count + " more cards; " + existing
+                        + " of at most " + MAX_CARDS + " already exist");
+            }
+            BloomFilter knownCards = new BloomFilter(existing + count, FALSE_POSITIVE_RATE);
+            addExistingCards(con, knownCards);
+
+            BlockingQueue<Chunk> chunks = new ArrayBlockingQueue<>(threads * 2);
+            ExecutorService generators = Executors.newFixedThreadPool(threads);
+            List<Future<?>> results = new ArrayList<>();
+            SplittableRandom random = new SplittableRandom();
+            for (int partition = 0; partition < threads; partition++) {
+                int quota = count / threads + (partition < count % threads ? 1 : 0);
+                SplittableRandom partitionRandom = random.split();   // Each thread gets its own generator.
+                int generatorPartition = partition;
+                results.add(generators.submit(() -> {
+                    generate(generatorPartition, quota, partitionRandom, knownCards, chunks);
+                    return null;
+                }));
+            }
+            generators.shutdown();
+
+            try {
+                insertCards(con, count, chunks, results, cardOutput);
+            } finally {
+                generators.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Generates cards whose account identifier falls in one partition, handing them over in chunks.
+     */
+    private void generate(int partition, int quota, SplittableRandom random, BloomFilter knownCards,
+                          BlockingQueue<Chunk> chunks) throws InterruptedException {
+        long identifiersPerPartition = Account.ACCOUNT_IDENTIFIER_BOUND / threads;
+        Chunk chunk = new Chunk(Math.min(CHUNK_SIZE, quota));
+        for (int made = 0; made < quota; made++) {
+            long card;
+            do {
+                long identifier = random.nextLong(identifiersPerPartition) * threads + partition;
+                card = Account.cardNumberFor(identifier);
+            } while (knownCards.mightContain(card));
+            knownCards.put(card);
+
+            chunk.add(card, (short) random.nextInt(PIN_BOUND));
+            if (chunk.isFull()) {
+                chunks.put(chunk);
+                chunk = new Chunk(Math.min(CHUNK_SIZE, quota - made - 1));
+            }
+        }
+    }
+
+    /**
+     * Inserts the generated cards as they arrive, in one transaction.
+     */
+    private void insertCards(Connection con, int count, BlockingQueue<Chunk> chunks, List<Future<?>> generators,
+                             PrintWriter cardOutput) throws SQLException, InterruptedException {
+        con.setAutoCommit(false);
+        try (PreparedStatement insert = con.prepareStatement(
+                "INSERT INTO card (number, pin, balance) VALUES (?, ?, 0)")) {
+            int written = 0;
+            while (written < count) {
+                Chunk chunk = chunks.poll(1, TimeUnit.SECONDS);
+                if (chunk == null) {
+                    checkGenerators(generators);
+                    continue;
+                }
+                for (int i = 0; i < chunk.size; i++) {
+                    String number = CardNumbers.unpack(chunk.cards[i]);
+                    String pin = Account.formatPin(chunk.pins[i]);
+                    insert.setString(1, number);
+                    insert.setString(2, pin);
+                    insert.addBatch();
+                    if (cardOutput != null) {
+                        cardOutput.println(number + "," + pin);
+                    }
+                }
+                insert.executeBatch();
+                written += chunk.size;
+            }
+            con.commit();
+        } catch (SQLException | InterruptedException | RuntimeException e) {
+            con.rollback();
+            throw e;
+        }
+    }
+
+    /**
+     * Rethrows the failure of any generator that stopped with an exception.
+     */
+    private static void checkGenerators(List<Future<?>> generators) throws InterruptedException {
+        for (Future<?> generator : generators) {
+            if (generator.isDone()) {
+                try {
+                    generator.get();
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException("Card generation failed", e.getCause());
+                }
+            }
+        }
+    }
+
+    private static long countCards(Connection con) throws SQLException {
+        try (Statement statement = con.createStatement();
+             ResultSet result = statement.executeQuery("SELECT COUNT(*) FROM card")) {
+            return result.next() ? result.getLong(1) : 0;
+        }
+    }
+
+    private static void addExistingCards(Connection con, BloomFilter knownCards) throws SQLException {
+        try (Statement statement = con.createStatement();
+             ResultSet numbers = statement.executeQuery("SELECT number FROM card")) {
+            while (numbers.next()) {
+                long card = CardNumbers.pack(numbers.getString(1));
+                if (card != CardNumbers.INVALID) {
+                    knownCards.put(card);
+                }
+            }
+        }
+    }
+
+    /**
+     * A batch of generated cards handed from a generator thread to the writer.
+     */
+    private static class Chunk {
+        private final long[] cards;
+        private final short[] pins;
+        private int size = 0;
+
+        private Chunk(int capacity) {
+            cards = new long[capacity];
+            pins = new short[capacity];
+        }
+
+        private void add(long card, short pin) {
+            cards[size] = card;
+            pins[size] = pin;
+            size++;
+        }
+
+        private boolean isFull() {
+            return size == cards.length;
+        }
+    }
+}
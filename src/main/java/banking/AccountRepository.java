@@ -0,0 +1,115 @@
+package banking;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.Collection;
+
+/**
+ * Reads and writes card Accounts in the database, which is either a single SQLite file or a set of shard files.
+ */
+public interface AccountRepository extends Closeable, Authenticator.CredentialStore, TransactionHistory.Store {
+
+    /**
+     * Receives card records one at a time, as they are streamed out of or into the card table. A card whose PIN is
+     * only kept hashed has a null PIN and its credential; any other card has its PIN and a null credential.
+     */
+    interface RecordSink {
+        void accept(String number, String pin, long balance, Authenticator.Credential credential)
+                throws SQLException;
+    }
+
+    /**
+     * Produces card records to be streamed into the card table.
+     */
+    interface RecordSource {
+        void readInto(RecordSink sink) throws SQLException, IOException;
+    }
+
+    /**
+     * Looks up a single card Account by its card number.
+     * @param number the card number to search for.
+     * @return the matching Account, flagged as in the database, or null if there is no such card.
+     * @throws SQLException if the lookup fails.
+     */
+    Account findByNumber(String number) throws SQLException;
+
+    /**
+     * Adds every card Account in the database to the given store.
+     * @param accounts the store where existing records are added.
+     * @throws SQLException if the table cannot be read.
+     */
+    void loadAll(AccountStore accounts) throws SQLException;
+
+    /**
+     * Streams every card record, with its PIN hash if it has one, through a cursor, without creating an Account for
+     * each one.
+     * @param sink receives each record in turn.
+     * @throws SQLException if the table cannot be read.
+     */
+    void exportAll(RecordSink sink) throws SQLException;
+
+    /**
+     * Streams card records into the card table, replacing any card with the same number. A record with a credential
+     * replaces the card's PIN hash and a record with a PIN drops it. A record with neither keeps the hash the card
+     * already has, and is refused if there is none, since nobody could log in to the card. Either every record is
+     * imported or, if reading or writing fails, none of them are.
+     * @param source produces the records to import.
+     * @throws SQLException if the records cannot be written, or a record has no PIN and no PIN hash to keep.
+     * @throws IOException if the records cannot be read.
+     */
+    void importAll(RecordSource source) throws SQLException, IOException;
+
+    /**
+     * Adds an Account to the database, unless its card number is already there.
+     * @param account the Account to add.
+     * @throws SQLException if the insert fails.
+     */
+    void insert(Account account) throws SQLException;
+
+    /**
+     * Writes the balance of an Account to the database.
+     * @param account the Account to update.
+     * @throws SQLException if the update fails.
+     */
+    void update(Account account) throws SQLException;
+
+    /**
+     * Deletes a card Account from the database.
+     * @param number the card number of the Account to delete.
+     * @throws SQLException if the delete fails.
+     */
+    void delete(String number) throws SQLException;
+
+    /**
+     * Inserts new Accounts and updates changed ones all at once. New Accounts also get their balance updated, in
+     * case a journal checkpoint already inserted them with an older balance.
+     * @param newAccounts the Accounts to insert.
+     * @param changedAccounts the Accounts whose balance to update.
+     * @throws SQLException if the save fails; nothing is written in that case.
+     */
+    void saveAll(Collection<Account> newAccounts, Collection<Account> changedAccounts) throws SQLException;
+
+    /**
+     * Applies folded entries, from the write-ahead journal or the background writer, all at once. Every entry holds
+     * the final state of a card, so applying the same entries again has no further effect.
+     * @param entries the folded entries.
+     * @throws SQLException if the entries could not be applied; nothing is changed in that case.
+     */
+    void applyJournal(Collection<TransactionJournal.Entry> entries) throws SQLException;
+
+    /**
+     * Moves the database on to a new generation. Every run that opens the database does this once, before changing
+     * anything, so a copy of the cards kept elsewhere, such as a mapped store file, can tell whether the database
+     * may have changed since the copy was last in step with it.
+     * @return the new generation; the one before it is one less.
+     * @throws SQLException if the generation cannot be written.
+     */
+    long advanceGeneration() throws SQLException;
+
+    /**
+     * Closes the database.
+     */
+    @Override
+    void close();
+}
@@ -0,0 +1,60 @@
+package banking;
+
+/**
+ * Holds the Accounts of a session and looks them up by card number.
+ */
+public interface AccountStore extends Iterable<Account> {
+
+    /**
+     * Looks up an Account by card number.
+     * @param number the card number to search for.
+     * @return the matching Account, or null if there is none.
+     */
+    Account get(String number);
+
+    /**
+     * Adds an Account to the store, replacing any Account with the same card number.
+     * @param account the Account to add.
+     */
+    void add(Account account);
+
+    /**
+     * Adds an Account to the store again after a change, unless its card is no longer in the store, such as after
+     * another session closed it, so a closed card is never put back.
+     * @param account the changed Account.
+     * @return true if the Account was kept; false if its card has been removed.
+     */
+    default boolean keepIfPresent(Account account) {
+        if (get(account.getNumber()) == null) {
+            return false;
+        }
+        add(account);
+        return true;
+    }
+
+    /**
+     * Adds a card read from the database, given in packed form. The default creates an Account for it; a store
+     * with a compact form of its own can keep the card without one.
+     * @param card the packed card number.
+     * @param pin the PIN as a number from 0 to 9999, or -1 if the PIN is only kept hashed.
+     * @param balance the balance, in cents.
+     */
+    default void addRecord(long card, int pin, long balance) {
+        Account account = new Account(CardNumbers.unpack(card), Account.formatPin(pin), balance);
+        account.setInDatabase(true);
+        add(account);
+    }
+
+    /**
+     * Removes the Account with the given card number.
+     * @param number the card number of the Account to remove.
+     * @return true if an Account was removed.
+     */
+    boolean remove(String number);
+
+    /**
+     *
+     * @return the number of Accounts in the store.
+     */
+    int size();
+}
@@ -0,0 +1,254 @@
+package banking;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * Checks PINs against salted hashes, keeping repeat logins cheap and guessing slow.
+ *
+ * Each card's PIN is stored as a PBKDF2 hash with its own random salt. Cards that have no hash yet, such as cards
+ * created before hashes were introduced, are checked against their PIN once and given a hash on their first
+ * successful login. A bounded cache remembers a cheap keyed digest of the PIN of recently verified cards, so a
+ * repeat login, or a wrong guess at a cached card, costs one SHA-256 instead of a PBKDF2 run. A card is locked out
+ * for a while after too many failed logins in a row, and a locked out card is refused before any hashing is done.
+ */
+public class Authenticator {
+    private static final String HASH_ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final int ITERATIONS = 10_000;
+    static final int SALT_BYTES = 16;  // The salt and hash sizes also fix the size of a card archive record.
+    static final int HASH_BYTES = 32;
+
+    /**
+     * The outcome of a login attempt.
+     */
+    public enum Result {
+        SUCCESS,
+        WRONG_PIN,
+        LOCKED_OUT
+    }
+
+    /**
+     * A salted PIN hash.
+     */
+    public static class Credential {
+        private final byte[] salt;
+        private final byte[] hash;
+        private final int iterations;
+
+        /**
+         * Creates a credential.
+         * @param salt the random salt the PIN was hashed with.
+         * @param hash the hash of the PIN.
+         * @param iterations the number of PBKDF2 iterations used.
+         */
+        public Credential(byte[] salt, byte[] hash, int iterations) {
+            this.salt = salt;
+            this.hash = hash;
+            this.iterations = iterations;
+        }
+
+        /**
+         *
+         * @return the random salt the PIN was hashed with.
+         */
+        public byte[] getSalt() {
+            return salt;
+        }
+
+        /**
+         *
+         * @return the hash of the PIN.
+         */
+        public byte[] getHash() {
+            return hash;
+        }
+
+        /**
+         *
+         * @return the number of PBKDF2 iterations used.
+         */
+        public int getIterations() {
+            return iterations;
+        }
+    }
+
+    /**
+     * Where PIN hashes are kept.
+     */
+    public interface CredentialStore {
+        Credential findCredential(String number) throws SQLException;
+
+        void saveCredential(String number, Credential credential) throws SQLException;
+    }
+
+    private final CredentialStore credentials;
+    private final LoginThrottle throttle;
+    private final SecureRandom random = new SecureRandom();
+    private final byte[] cacheKey = new byte[SALT_BYTES];
+    private final ReentrantLock cacheLock = new ReentrantLock();
+    private final LinkedHashMap<String, byte[]> verified;
+
+    /**
+     * Creates an authenticator.
+     * @param credentials where PIN hashes are kept, or null to keep no hashes and check cards against their PIN.
+     * @param cacheSize the number of verified cards to remember.
+     * @param maxFailures the number of failed logins in a row after which a card is locked out.
+     * @param lockoutMillis how long a card stays locked out after its last failed login.
+     * @param throttleSize the number of cards whose failed logins can be counted at once.
+     */
+    public Authenticator(CredentialStore credentials, int cacheSize, int maxFailures, long lockoutMillis,
+                         int throttleSize) {
+        this.credentials = credentials;
+        this.throttle = new LoginThrottle(throttleSize, maxFailures, lockoutMillis);
+        random.nextBytes(cacheKey);
+        this.verified = new LinkedHashMap<String, byte[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    /**
+     * Checks the PIN entered for an Account.
+     * @param account the Account of the card number entered.
+     * @param pin the PIN entered.
+     * @return the outcome of the attempt.
+     */
+    public Result authenticate(Account account, String pin) {
+        String number = account.getNumber();
+        long card = CardNumbers.pack(number);
+        long now = System.currentTimeMillis();
+        if (throttle.isLockedOut(card, now)) {
+            return Result.LOCKED_OUT;
+        }
+
+        byte[] digest = cacheDigest(pin);
+        byte[] cached;
+        cacheLock.lock();
+        try {
+            cached = verified.get(number);
+        } finally {
+            cacheLock.unlock();
+        }
+
+        boolean matches = cached != null ? MessageDigest.isEqual(cached, digest) : verify(account, pin);
+        if (!matches) {
+            throttle.recordFailure(card, now);
+            return Result.WRONG_PIN;
+        }
+        throttle.clear(card);
+        if (cached == null) {
+            cacheLock.lock();
+            try {
+                verified.put(number, digest);
+            } finally {
+                cacheLock.unlock();
+            }
+        }
+        return Result.SUCCESS;
+    }
+
+    /**
+     * Checks whether a card is locked out after too many failed logins.
+     * @param number the card number.
+     * @return true if logins to the card are refused for now.
+     */
+    public boolean isLockedOut(String number) {
+        long card = CardNumbers.pack(number);
+        return card != CardNumbers.INVALID && throttle.isLockedOut(card, System.currentTimeMillis());
+    }
+
+    /**
+     * Gives a new card a salted hash of its PIN, so the card can be kept without its PIN from the start.
+     * @param number the card number.
+     * @param pin the card's PIN.
+     * @return true if the hash was stored; false if there is nowhere to store it, or storing it failed, in which case
+     *         the card must keep its PIN.
+     */
+    public boolean enroll(String number, String pin) {
+        if (credentials == null) {
+            return false;
+        }
+        byte[] salt = new byte[SALT_BYTES];
+        random.nextBytes(salt);
+        try {
+            credentials.saveCredential(number, new Credential(salt, hash(pin, salt, ITERATIONS), ITERATIONS));
+            return true;
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Forgets a card, such as one that was closed, so its number can never log in with the old PIN.
+     * @param number the card number.
+     */
+    public void forget(String number) {
+        cacheLock.lock();
+        try {
+            verified.remove(number);
+        } finally {
+            cacheLock.unlock();
+        }
+    }
+
+    /**
+     * Checks a PIN against the card's stored hash, or against its PIN if it has no hash yet, giving it one then.
+     */
+    private boolean verify(Account account, String pin) {
+        Credential credential = null;
+        if (credentials != null) {
+            try {
+                credential = credentials.findCredential(account.getNumber());
+            } catch (SQLException e) {
+                e.printStackTrace();
+                return false;
+            }
+        }
+        if (credential != null) {
+            return MessageDigest.isEqual(credential.getHash(),
+                    hash(pin, credential.getSalt(), credential.getIterations()));
+        }
+
+        if (account.getPin() == null || !MessageDigest.isEqual(account.getPin().getBytes(StandardCharsets.UTF_8),
+                pin.getBytes(StandardCharsets.UTF_8))) {
+            return false;   // A card without a PIN can only log in against its hash.
+        }
+        enroll(account.getNumber(), pin);   // On failure the card keeps logging in with its PIN and tries again.
+        return true;
+    }
+
+    private static byte[] hash(String pin, byte[] salt, int iterations) {
+        PBEKeySpec spec = new PBEKeySpec(pin.toCharArray(), salt, iterations, HASH_BYTES * 8);
+        try {
+            return SecretKeyFactory.getInstance(HASH_ALGORITHM).generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(HASH_ALGORITHM + " is not available", e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    /**
+     * Digests a PIN with a key only this process knows, so the cache does not hold PINs or unsalted hashes.
+     */
+    private byte[] cacheDigest(String pin) {
+        try {
+            MessageDigest sha = MessageDigest.getInstance("SHA-256");
+            sha.update(cacheKey);
+            return sha.digest(pin.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package banking;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serves the banking menu over TCP so that many users can be served by one process at once.
+ *
+ * Each connection gets its own thread running a ClientSession. When the JVM supports virtual threads each session
+ * runs on one, so tens of thousands of mostly idle sessions cost little more than their sockets.
+ */
+public class BankServer implements Closeable {
+    private final ServerSocket serverSocket;
+    private final AccountStore accounts;
+    private final AccountRepository repository;
+    private final ExecutorService sessions = newSessionExecutor();
+    private final Set<Socket> openSockets = ConcurrentHashMap.newKeySet();
+    private final Thread acceptor;
+
+    /**
+     * Starts listening for connections.
+     * @param port the port to listen on.
+     * @param accounts the thread-safe store of accounts shared by every session.
+     * @param repository the database.
+     * @throws IOException if the port cannot be opened.
+     */
+    public BankServer(int port, AccountStore accounts, AccountRepository repository) throws IOException {
+        this.serverSocket = new ServerSocket(port);
+        this.accounts = accounts;
+        this.repository = repository;
+        this.acceptor = new Thread(this::acceptConnections, "bank-server-acceptor");
+        acceptor.start();
+    }
+
+    /**
+     *
+     * @return the port the server is listening on.
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    private void acceptConnections() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                openSockets.add(socket);
+                sessions.execute(() -> {
+                    try {
+                        new ClientSession(socket, accounts, repository).run();
+                    } finally {
+                        openSockets.remove(socket);
+                    }
+                });
+            } catch (SocketException e) {
+                // The server socket was closed by close().
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Stops accepting connections, disconnects every open session and waits for the sessions to finish.
+     * @throws IOException if the server socket cannot be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        for (Socket socket : openSockets) {
+            socket.close();
+        }
+        sessions.shutdown();
+        try {
+            acceptor.join();
+            sessions.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Creates an executor that runs each task on a new virtual thread when the JVM supports them, falling back to
+     * a cached pool of platform threads otherwise.
+     * @return the executor.
+     */
+    static ExecutorService newSessionExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+}
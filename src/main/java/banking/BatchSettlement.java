@@ -0,0 +1,238 @@
+package banking;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Applies a file of transfers, one "from,to,amount" record per line, and reports the outcome of each record.
+ *
+ * The file is streamed in chunks so memory use does not grow with its length. Each record in a chunk is checked
+ * first: both cards must pass the Luhn algorithm, differ, and belong to existing accounts. The valid transfers are
+ * then split into rounds, greedily putting each transfer in the first round after the last one that touched either of
+ * its accounts. No two transfers in a round share an account, so a round is applied in parallel on a ForkJoin pool
+ * without any contention, while each account still sees its transfers in file order. The outcome of every record is
+ * therefore the same as applying the file one line at a time.
+ */
+public class BatchSettlement {
+    private static final int CHUNK_SIZE = 100_000;
+    private static final int SEQUENTIAL_THRESHOLD = 1_000;
+
+    /**
+     * The outcome of a record.
+     */
+    public enum Outcome {
+        ACCEPTED,
+        INVALID_RECORD,
+        INVALID_CARD,
+        UNKNOWN_CARD,
+        SAME_ACCOUNT,
+        INSUFFICIENT_FUNDS,
+        LIMIT_REACHED
+    }
+
+    private final AccountStore accounts;
+    private final ForkJoinPool pool;
+    private final long[] outcomeCounts = new long[Outcome.values().length];
+
+    /**
+     * Creates a settlement run.
+     * @param accounts the store of accounts the transfers move money between.
+     * @param pool the pool rounds of transfers are applied on.
+     */
+    public BatchSettlement(AccountStore accounts, ForkJoinPool pool) {
+        this.accounts = accounts;
+        this.pool = pool;
+    }
+
+    /**
+     * Applies every record and writes one report line per record: the record followed by its outcome.
+     * @param records the transfer records, one per line.
+     * @param report where the report lines are written.
+     * @throws IOException if the records cannot be read.
+     */
+    public void settle(BufferedReader records, PrintWriter report) throws IOException {
+        String[] lines = new String[CHUNK_SIZE];
+        int count;
+        do {
+            count = 0;
+            String line;
+            while (count < CHUNK_SIZE && (line = records.readLine()) != null) {
+                lines[count++] = line;
+            }
+            new Chunk(lines, count).settle(report);
+        } while (count == CHUNK_SIZE);
+    }
+
+    /**
+     *
+     * @param outcome an outcome.
+     * @return the number of records settled so far with that outcome.
+     */
+    public long count(Outcome outcome) {
+        return outcomeCounts[outcome.ordinal()];
+    }
+
+    /**
+     * A chunk of records, with the accounts and amounts of the valid transfers among them.
+     */
+    private class Chunk {
+        private final String[] lines;
+        private final int size;
+        private final Outcome[] outcomes;
+        private final Account[] sources;
+        private final Account[] targets;
+        private final long[] amounts;
+
+        /*
+        Each card is resolved once per chunk, so every transfer touching an account uses the same object.
+         */
+        private final Map<String, Account> resolved = new HashMap<>();
+
+        Chunk(String[] lines, int size) {
+            this.lines = lines;
+            this.size = size;
+            outcomes = new Outcome[size];
+            sources = new Account[size];
+            targets = new Account[size];
+            amounts = new long[size];
+        }
+
+        void settle(PrintWriter report) {
+            for (int i = 0; i < size; i++) {
+                outcomes[i] = check(i);
+            }
+            applyInRounds();
+
+            for (Account account : resolved.values()) {
+                if (account != null) {
+                    accounts.add(account); // Keeps changed accounts in the store, even a lazily loaded one.
+                }
+            }
+            for (int i = 0; i < size; i++) {
+                outcomeCounts[outcomes[i].ordinal()]++;
+                report.println(lines[i] + "," + outcomes[i]);
+            }
+        }
+
+        /**
+         * Checks a record, remembering its accounts and amount if it is a valid transfer.
+         * @return null for a valid transfer, otherwise the reason it is rejected.
+         */
+        private Outcome check(int i) {
+            String[] fields = lines[i].split(",");
+            if (fields.length != 3) {
+                return Outcome.INVALID_RECORD;
+            }
+            String from = fields[0].trim();
+            String to = fields[1].trim();
+            try {
+                amounts[i] = Money.parse(fields[2].trim());
+            } catch (RuntimeException e) {
+                return Outcome.INVALID_RECORD;
+            }
+            if (amounts[i] <= 0) {
+                return Outcome.INVALID_RECORD;
+            }
+            if (!Luhn.isValid(from) || !Luhn.isValid(to)) {
+                return Outcome.INVALID_CARD;
+            }
+            if (from.equals(to)) {
+                return Outcome.SAME_ACCOUNT;
+            }
+            sources[i] = resolved.computeIfAbsent(from, accounts::get);
+            targets[i] = resolved.computeIfAbsent(to, accounts::get);
+            if (sources[i] == null || targets[i] == null) {
+                return Outcome.UNKNOWN_CARD;
+            }
+            return null;
+        }
+
+        /**
+         * Groups the valid transfers into rounds that share no account and applies the rounds in order.
+         */
+        private void applyInRounds() {
+            Map<Account, Integer> nextRound = new IdentityHashMap<>();
+            int[] rounds = new int[size];
+            int roundCount = 0;
+            for (int i = 0; i < size; i++) {
+                if (outcomes[i] == null) {
+                    int round = Math.max(nextRound.getOrDefault(sources[i], 0),
+                            nextRound.getOrDefault(targets[i], 0));
+                    rounds[i] = round;
+                    nextRound.put(sources[i], round + 1);
+                    nextRound.put(targets[i], round + 1);
+                    roundCount = Math.max(roundCount, round + 1);
+                }
+            }
+
+            /*
+            Lists the transfers of each round together, keeping file order within a round.
+             */
+            int[] roundStart = new int[roundCount + 1];
+            for (int i = 0; i < size; i++) {
+                if (outcomes[i] == null) {
+                    roundStart[rounds[i] + 1]++;
+                }
+            }
+            for (int round = 0; round < roundCount; round++) {
+                roundStart[round + 1] += roundStart[round];
+            }
+            int[] order = new int[roundStart[roundCount]];
+            int[] next = roundStart.clone();
+            for (int i = 0; i < size; i++) {
+                if (outcomes[i] == null) {
+                    order[next[rounds[i]]++] = i;
+                }
+            }
+
+            for (int round = 0; round < roundCount; round++) {
+                pool.invoke(new ApplyRound(order, roundStart[round], roundStart[round + 1]));
+            }
+        }
+
+        /**
+         * Applies a range of the transfers of one round, splitting it across the pool when it is large.
+         */
+        private class ApplyRound extends RecursiveAction {
+            private static final long serialVersionUID = 1L;
+
+            private final int[] order;
+            private final int from;
+            private final int to;
+
+            ApplyRound(int[] order, int from, int to) {
+                this.order = order;
+                this.from = from;
+                this.to = to;
+            }
+
+            @Override
+            protected void compute() {
+                if (to - from <= SEQUENTIAL_THRESHOLD) {
+                    for (int k = from; k < to; k++) {
+                        int i = order[k];
+                        TransferService.Result result;
+                        try {
+                            result = Main.transfer(sources[i], targets[i], amounts[i]);
+                        } catch (VelocityLimitException e) {
+                            outcomes[i] = Outcome.LIMIT_REACHED;
+                            continue;
+                        }
+                        outcomes[i] = result == TransferService.Result.SUCCESS ? Outcome.ACCEPTED
+                                : result == TransferService.Result.SAME_ACCOUNT ? Outcome.SAME_ACCOUNT
+                                : Outcome.INSUFFICIENT_FUNDS;
+                    }
+                } else {
+                    int middle = (from + to) >>> 1;
+                    invokeAll(new ApplyRound(order, from, middle), new ApplyRound(order, middle, to));
+                }
+            }
+        }
+    }
+}
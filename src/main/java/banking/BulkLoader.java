@@ -0,0 +1,175 @@
+package banking;
+
+import org.sqlite.SQLiteDataSource;
+
+import java.io.PrintStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Reads the whole card table into an AccountStore on several connections at once.
+ *
+ * The table is split into ranges of its id, which is the rowid, so each range is a seek and a sequential read of
+ * the table's B-tree. Several threads, each with its own connection, take ranges in turn until none are left; with
+ * write-ahead logging the readers do not block each other. Columns are read by position and as numbers, so no
+ * String is created for a card number or PIN, and the decoded cards are handed to the store a block at a time in
+ * their packed form, which a store with a compact form of its own keeps without creating an Account at all. Progress
+ * and the load rate are reported while the load runs.
+ */
+public class BulkLoader {
+    private static final int RANGES_PER_THREAD = 8;
+    private static final int BLOCK_SIZE = 10_000;
+    private static final long REPORT_MILLIS = 1000;
+
+    private final SQLiteDataSource data;
+    private final int threads;
+    private final PrintStream progress;
+    private final LongAdder loaded = new LongAdder();
+
+    /**
+     * Creates a loader.
+     * @param data the data source of the database file.
+     * @param threads the number of connections to read on at once.
+     * @param progress where progress is reported, or null to report nothing.
+     */
+    public BulkLoader(SQLiteDataSource data, int threads, PrintStream progress) {
+        this.data = data;
+        this.threads = threads;
+        this.progress = progress;
+    }
+
+    /**
+     * Adds every card in the table to the store. The store is only called by one thread at a time.
+     * @param accounts the store where the cards are added.
+     * @return the number of cards added.
+     * @throws SQLException if the table cannot be read.
+     */
+    public long load(AccountStore accounts) throws SQLException {
+        long start = System.nanoTime();
+        long first;
+        long last;
+        try (Connection con = data.getConnection();
+             Statement statement = con.createStatement();
+             ResultSet bounds = statement.executeQuery("SELECT MIN(id), MAX(id) FROM card")) {
+            if (!bounds.next() || bounds.getObject(1) == null) {
+                return 0;   // The table is empty.
+            }
+            first = bounds.getLong(1);
+            last = bounds.getLong(2);
+        }
+
+        long span = last - first + 1;   // Ids deleted cards leave behind make some ranges smaller.
+        int rangeCount = (int) Math.min(span, (long) threads * RANGES_PER_THREAD);
+        long rangeSize = (span + rangeCount - 1) / rangeCount;
+        AtomicInteger nextRange = new AtomicInteger();
+        ReentrantLock storeLock = new ReentrantLock();
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<?>> workers = new ArrayList<>(threads);
+        for (int i = 0; i < threads; i++) {
+            workers.add(pool.submit(() -> {
+                readRanges(accounts, storeLock, nextRange, rangeCount, first, rangeSize);
+                return null;
+            }));
+        }
+        pool.shutdown();
+
+        try {
+            for (Future<?> worker : workers) {
+                while (true) {
+                    try {
+                        worker.get(REPORT_MILLIS, TimeUnit.MILLISECONDS);
+                        break;
+                    } catch (TimeoutException e) {
+                        report("Loading:", start);
+                    }
+                }
+            }
+        } catch (ExecutionException e) {
+            pool.shutdownNow();
+            if (e.getCause() instanceof SQLException) {
+                throw (SQLException) e.getCause();
+            }
+            throw new IllegalStateException("Loading cards failed", e.getCause());
+        } catch (InterruptedException e) {
+            pool.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while loading cards", e);
+        }
+        report("Loaded", start);
+        return loaded.sum();
+    }
+
+    /**
+     * Reads ranges of the table until every range has been taken, handing the cards to the store a block at a time.
+     */
+    private void readRanges(AccountStore accounts, ReentrantLock storeLock, AtomicInteger nextRange, int rangeCount,
+                            long first, long rangeSize) throws SQLException {
+        long[] cards = new long[BLOCK_SIZE];
+        int[] pins = new int[BLOCK_SIZE];
+        long[] balances = new long[BLOCK_SIZE];
+        try (Connection con = data.getConnection();
+             PreparedStatement select = con.prepareStatement("SELECT CAST(number AS INTEGER), " +
+                     "IFNULL(CAST(pin AS INTEGER), -1), balance FROM card WHERE id BETWEEN ? AND ?")) {
+            select.setFetchSize(BLOCK_SIZE);
+            int range;
+            while ((range = nextRange.getAndIncrement()) < rangeCount) {
+                long from = first + range * rangeSize;
+                select.setLong(1, from);
+                select.setLong(2, from + rangeSize - 1);
+                int size = 0;
+                try (ResultSet records = select.executeQuery()) {
+                    while (records.next()) {
+                        cards[size] = records.getLong(1);
+                        pins[size] = records.getInt(2);
+                        balances[size] = records.getLong(3);
+                        if (++size == BLOCK_SIZE) {
+                            addBlock(accounts, storeLock, cards, pins, balances, size);
+                            size = 0;
+                        }
+                    }
+                }
+                addBlock(accounts, storeLock, cards, pins, balances, size);
+            }
+        }
+    }
+
+    private void addBlock(AccountStore accounts, ReentrantLock storeLock, long[] cards, int[] pins, long[] balances,
+                          int size) {
+        storeLock.lock();
+        try {
+            for (int i = 0; i < size; i++) {
+                accounts.addRecord(cards[i], pins[i], balances[i]);
+            }
+        } finally {
+            storeLock.unlock();
+        }
+        loaded.add(size);
+    }
+
+    /**
+     * Reports the number of cards loaded so far and the load rate.
+     */
+    private void report(String prefix, long start) {
+        if (progress == null) {
+            return;
+        }
+        long count = loaded.sum();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        progress.printf("%s %,d cards in %.1f s (%,.0f cards/s)%n", prefix, count, seconds, count / seconds);
+    }
+}
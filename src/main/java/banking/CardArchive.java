@@ -0,0 +1,187 @@
+package banking;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.util.zip.CRC32;
+
+/**
+ * Exports the card table to, and imports it from, a compact binary file.
+ *
+ * The file starts with a 16 byte header: a magic number, the format version and the number of records. Each record
+ * is 70 bytes: the card number packed into a long, the PIN as a short (-1 for a card whose PIN is only kept hashed),
+ * the balance in cents as a long, then the card's PIN hash as its iteration count, as an int, its salt and its hash
+ * (all zero for a card with no hash). A CRC32 of every record follows the last one. Version 1 archives, whose 18
+ * byte records end after the balance, can still be imported; cards in them with no PIN keep the hash they already
+ * have in the database.
+ * Records are streamed between a database cursor and the file through a fixed size buffer on export and a sliding
+ * memory-mapped window on import, so memory use does not grow with the table.
+ */
+public final class CardArchive {
+    private static final int MAGIC = 0x43415244;    // "CARD"
+    private static final short VERSION = 2;
+    private static final int HEADER_SIZE = 16;
+    private static final int V1_RECORD_SIZE = 18;
+    private static final int RECORD_SIZE = V1_RECORD_SIZE + 4 + Authenticator.SALT_BYTES + Authenticator.HASH_BYTES;
+    private static final int TRAILER_SIZE = 4;
+    private static final int BUFFER_RECORDS = 64 * 1024;
+    private static final long WINDOW_RECORDS = 4 * 1024 * 1024;
+    private static final byte[] NO_CREDENTIAL = new byte[RECORD_SIZE - V1_RECORD_SIZE];
+
+    private CardArchive() {
+    }
+
+    /**
+     * Writes every card in the database to a file, replacing any file already there.
+     * @param repository the database to read.
+     * @param file the file to write.
+     * @return the number of cards written.
+     * @throws SQLException if the card table cannot be read, or holds a card number that cannot be packed or a PIN
+     * hash of another size.
+     * @throws IOException if the file cannot be written.
+     */
+    public static long export(AccountRepository repository, Path file) throws SQLException, IOException {
+        try (FileChannel out = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(RECORD_SIZE * BUFFER_RECORDS);
+            CRC32 crc = new CRC32();
+            long[] count = {0};
+
+            out.position(HEADER_SIZE);  // The header is written last, once the record count is known.
+            try {
+                repository.exportAll((number, pin, balance, credential) -> {
+                    long card = CardNumbers.pack(number);
+                    if (card == CardNumbers.INVALID) {
+                        throw new SQLException("Card number " + number + " cannot be exported");
+                    }
+                    if (credential != null && (credential.getSalt().length != Authenticator.SALT_BYTES
+                            || credential.getHash().length != Authenticator.HASH_BYTES)) {
+                        throw new SQLException("The PIN hash of card " + number + " cannot be exported");
+                    }
+                    if (buffer.remaining() < RECORD_SIZE) {
+                        try {
+                            writeRecords(out, buffer, crc);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e); // The cursor only lets SQLExceptions through.
+                        }
+                    }
+                    buffer.putLong(card).putShort(Account.packPin(pin)).putLong(balance);
+                    if (credential == null) {
+                        buffer.put(NO_CREDENTIAL);
+                    } else {
+                        buffer.putInt(credential.getIterations()).put(credential.getSalt()).put(credential.getHash());
+                    }
+                    count[0]++;
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            writeRecords(out, buffer, crc);
+
+            buffer.putInt((int) crc.getValue()).flip();
+            writeFully(out, buffer);
+
+            buffer.clear();
+            buffer.putInt(MAGIC).putShort(VERSION).putShort((short) 0).putLong(count[0]).flip();
+            out.position(0);
+            writeFully(out, buffer);
+            out.force(true);
+            return count[0];
+        }
+    }
+
+    /**
+     * Reads every card in a file into the database in one transaction, replacing cards with the same number and their
+     * PIN hashes. The checksum is verified before the transaction commits, so a damaged file changes nothing.
+     * @param repository the database to write.
+     * @param file the file to read.
+     * @return the number of cards read.
+     * @throws SQLException if the cards cannot be written, or a card has no PIN and no PIN hash in the file or the
+     * database.
+     * @throws IOException if the file cannot be read, is not an archive or fails its checksum.
+     */
+    public static long importInto(AccountRepository repository, Path file) throws SQLException, IOException {
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (header.hasRemaining() && in.read(header) >= 0) {
+                // Keeps reading until the header is complete or the file ends.
+            }
+            header.flip();
+            if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC) {
+                throw new IOException(file + " is not a card archive");
+            }
+            short version = header.getShort();
+            if (version != 1 && version != VERSION) {
+                throw new IOException(file + " has an unsupported archive version");
+            }
+            int recordSize = version == 1 ? V1_RECORD_SIZE : RECORD_SIZE;
+            header.getShort();
+            long count = header.getLong();
+            if (count < 0 || in.size() != HEADER_SIZE + count * recordSize + TRAILER_SIZE) {
+                throw new IOException(file + " is truncated");
+            }
+
+            repository.importAll(sink -> {
+                CRC32 crc = new CRC32();
+                byte[] record = new byte[recordSize];
+                for (long first = 0; first < count; first += WINDOW_RECORDS) {
+                    long records = Math.min(WINDOW_RECORDS, count - first);
+                    MappedByteBuffer window = in.map(FileChannel.MapMode.READ_ONLY,
+                            HEADER_SIZE + first * recordSize, records * recordSize);
+                    for (long i = 0; i < records; i++) {
+                        window.get(record);
+                        crc.update(record, 0, recordSize);
+                        ByteBuffer fields = ByteBuffer.wrap(record);
+                        String number = CardNumbers.unpack(fields.getLong());
+                        String pin = Account.formatPin(fields.getShort());
+                        long balance = fields.getLong();
+                        sink.accept(number, pin, balance, fields.hasRemaining() ? readCredential(fields) : null);
+                    }
+                }
+
+                ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE);
+                in.read(trailer, HEADER_SIZE + count * recordSize);
+                if (trailer.getInt(0) != (int) crc.getValue()) {
+                    throw new IOException(file + " failed its checksum");
+                }
+            });
+            return count;
+        }
+    }
+
+    /**
+     * Reads the PIN hash at the end of a record.
+     * @return the card's credential, or null if the card has none.
+     */
+    private static Authenticator.Credential readCredential(ByteBuffer fields) {
+        int iterations = fields.getInt();
+        if (iterations == 0) {
+            return null;
+        }
+        byte[] salt = new byte[Authenticator.SALT_BYTES];
+        byte[] hash = new byte[Authenticator.HASH_BYTES];
+        fields.get(salt).get(hash);
+        return new Authenticator.Credential(salt, hash, iterations);
+    }
+
+    /**
+     * Writes the buffered records to the channel, adding them to the checksum, and empties the buffer.
+     */
+    private static void writeRecords(FileChannel out, ByteBuffer buffer, CRC32 crc) throws IOException {
+        buffer.flip();
+        crc.update(buffer.duplicate());
+        writeFully(out, buffer);
+        buffer.clear();
+    }
+
+    private static void writeFully(FileChannel out, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+}
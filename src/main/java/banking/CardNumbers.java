@@ -0,0 +1,50 @@
+package banking;
+
+public final class CardNumbers {
+    /**
+     * Number of digits in a card number.
+     */
+    public static final int LENGTH = 16;
+
+    /**
+     * Returned by pack() when a string cannot be a card number.
+     */
+    public static final long INVALID = -1L;
+
+    private CardNumbers() {
+    }
+
+    /**
+     * Packs a 16 digit card number into a long so it can be used as a primitive key.
+     * @param number the card number to pack.
+     * @return the card number as a long, or INVALID if the string is not exactly 16 digits.
+     */
+    public static long pack(CharSequence number) {
+        if (number == null || number.length() != LENGTH) {
+            return INVALID;
+        }
+        long packed = 0;
+        for (int i = 0; i < LENGTH; i++) {
+            int digit = number.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return INVALID;
+            }
+            packed = packed * 10 + digit;
+        }
+        return packed;
+    }
+
+    /**
+     * Turns a packed card number back into its 16 digit string form, keeping any leading zeros.
+     * @param packed the packed card number.
+     * @return the card number as a string.
+     */
+    public static String unpack(long packed) {
+        char[] digits = new char[LENGTH];
+        for (int i = LENGTH - 1; i >= 0; i--) {
+            digits[i] = (char) ('0' + (packed % 10));
+            packed /= 10;
+        }
+        return new String(digits);
+    }
+}
@@ -0,0 +1,193 @@
+package banking;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Runs the banking menu for one network client using a line protocol. Each request is one line holding a command
+ * and its arguments separated by spaces; each reply is one line starting with OK or ERR.
+ *
+ * <pre>
+ * CREATE                     OK &lt;card number&gt; &lt;PIN&gt;
+ * LOGIN &lt;card&gt; &lt;PIN&gt;         OK
+ * BALANCE                    OK &lt;balance, such as 12.50&gt;
+ * INCOME &lt;amount&gt;            OK
+ * TRANSFER &lt;card&gt; &lt;amount&gt;   OK
+ * STATEMENT [&lt;cursor&gt;]       OK &lt;next cursor, or END&gt; [&lt;time&gt;,&lt;amount&gt;,&lt;other card, or -&gt; ...]
+ * CLOSE                      OK
+ * LOGOUT                     OK
+ * QUIT                       OK
+ * </pre>
+ *
+ * STATEMENT replies with a page of the newest entries of the card's history, newest first, each with its time in
+ * milliseconds since the epoch. Passing back the cursor from a reply reads the page that follows it.
+ */
+public class ClientSession implements Runnable {
+    private final Socket socket;
+    private final AccountStore accounts;
+    private final AccountRepository repository;
+    private Account userAccount = null;    // The logged-into account, or null if not logged in.
+
+    /**
+     * Creates a session for a connected client.
+     * @param socket the client's connection.
+     * @param accounts the thread-safe store of accounts shared by every session.
+     * @param repository the database.
+     */
+    public ClientSession(Socket socket, AccountStore accounts, AccountRepository repository) {
+        this.socket = socket;
+        this.accounts = accounts;
+        this.repository = repository;
+    }
+
+    @Override
+    public void run() {
+        try (Socket client = socket;
+             BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream(),
+                     StandardCharsets.UTF_8));
+             PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(client.getOutputStream(),
+                     StandardCharsets.UTF_8)))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] request = line.trim().split("\\s+");
+                boolean quit = request[0].equalsIgnoreCase("QUIT");
+                out.println(quit ? "OK" : handle(request));
+                out.flush();    // One write per reply.
+                if (quit) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            // The client disconnected or the server is shutting down.
+        }
+    }
+
+    /**
+     * Carries out one request.
+     * @param request the command followed by its arguments.
+     * @return the reply line.
+     */
+    private String handle(String[] request) {
+        String command = request[0].toUpperCase();
+        try {
+            switch (command) {
+                case "CREATE":
+                    Account newAccount;
+                    try {
+                        newAccount = Main.newAccount(accounts);
+                    } catch (IllegalStateException e) {   // A mapped store that is full.
+                        return "ERR " + e.getMessage();
+                    }
+                    return "OK " + newAccount.getNumber() + " " + newAccount.getPin();
+                case "LOGIN":
+                    requireArguments(request, 2);
+                    userAccount = Main.findLoginAccount(accounts, request[1], request[2]);
+                    if (userAccount != null) {
+                        return "OK";
+                    }
+                    return Main.isLockedOut(request[1]) ? "ERR Too many failed attempts. Try again later."
+                            : "ERR Wrong card number or PIN!";
+                case "LOGOUT":
+                    userAccount = null;
+                    return "OK";
+                default:
+                    break;
+            }
+
+            if (userAccount == null) {
+                return "ERR Not logged in";
+            }
+            if (accounts.get(userAccount.getNumber()) == null) {
+                userAccount = null;     // Another session closed the card.
+                return "ERR The account has been closed.";
+            }
+            switch (command) {
+                case "BALANCE":
+                    return "OK " + Money.format(userAccount.getBalance());
+                case "INCOME":
+                    requireArguments(request, 1);
+                    Main.addIncome(userAccount, Money.parse(request[1]));
+                    accounts.keepIfPresent(userAccount);    // Keeps the changed account in the store.
+                    return "OK";
+                case "TRANSFER":
+                    requireArguments(request, 2);
+                    return transfer(request[1], Money.parse(request[2]));
+                case "STATEMENT":
+                    return statement(request.length > 1 ? parseCursor(request[1]) : null);
+                case "CLOSE":
+                    boolean closed = Main.removeAccount(userAccount, accounts, repository);
+                    userAccount = null;
+                    return closed ? "OK" : "ERR Unable to close the account.";
+                default:
+                    return "ERR Unknown command " + command;
+            }
+        } catch (IllegalArgumentException e) {
+            return "ERR " + e.getMessage();
+        }
+    }
+
+    private String transfer(String cardNumber, long amount) {
+        if (!Luhn.isValid(cardNumber)) {
+            return "ERR This is an invalid card number.";
+        }
+        Account receivingAccount = accounts.get(cardNumber);
+        if (receivingAccount == null) {
+            return "ERR Such a card does not exist";
+        }
+        switch (Main.transfer(userAccount, receivingAccount, amount)) {
+            case SAME_ACCOUNT:
+                return "ERR You can't transfer money to the same account!";
+            case INSUFFICIENT_FUNDS:
+                return "ERR Not enough money!";
+            default:
+                accounts.keepIfPresent(userAccount);
+                accounts.keepIfPresent(receivingAccount);
+                return "OK";
+        }
+    }
+
+    private String statement(TransactionHistory.Entry after) {
+        List<TransactionHistory.Entry> page = Main.statement(userAccount.getNumber(), after);
+        if (page == null) {
+            return "ERR Unable to read the statement.";
+        }
+        StringBuilder reply = new StringBuilder("OK ");
+        if (page.size() < Main.STATEMENT_PAGE_SIZE) {
+            reply.append("END");
+        } else {
+            TransactionHistory.Entry last = page.get(page.size() - 1);
+            reply.append(last.getTimestamp()).append(':').append(last.getId());
+        }
+        for (TransactionHistory.Entry entry : page) {
+            reply.append(' ').append(entry.getTimestamp())
+                    .append(',').append(Money.format(entry.getAmount()))
+                    .append(',').append(entry.getCounterparty() == null ? "-" : entry.getCounterparty());
+        }
+        return reply.toString();
+    }
+
+    /**
+     * Reads a cursor of the form "time:id", as given in a STATEMENT reply.
+     */
+    private TransactionHistory.Entry parseCursor(String cursor) {
+        int colon = cursor.indexOf(':');
+        if (colon < 0) {
+            throw new IllegalArgumentException("Not a valid cursor: " + cursor);
+        }
+        return new TransactionHistory.Entry(Long.parseLong(cursor.substring(colon + 1)), userAccount.getNumber(),
+                Long.parseLong(cursor.substring(0, colon)), 0, null);
+    }
+
+    private static void requireArguments(String[] request, int count) {
+        if (request.length < count + 1) {
+            throw new IllegalArgumentException(request[0] + " needs " + count + " argument(s)");
+        }
+    }
+}
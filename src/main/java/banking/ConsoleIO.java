@@ -0,0 +1,116 @@
+package banking;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reads whitespace separated tokens from one shared input and writes buffered output for the menu.
+ *
+ * Input is read in large blocks and split into tokens without regular expressions, so no token is ever lost between
+ * readers. Output is buffered and only flushed when the next token has to wait for more input, which is once per
+ * prompt when a person is typing and once per input block when a file is piped in. Prompts, such as the menus and
+ * "Enter ..." lines, can be left out so that batch runs print only results.
+ */
+public class ConsoleIO {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final InputStream in;
+    private final PrintWriter out;
+    private final boolean showPrompts;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int position = 0;
+    private int limit = 0;
+    private byte[] token = new byte[64];
+
+    /**
+     * Creates a console over the given streams.
+     * @param in the input to read tokens from.
+     * @param out the output to write to.
+     * @param showPrompts false to leave prompts out of the output.
+     */
+    public ConsoleIO(InputStream in, OutputStream out, boolean showPrompts) {
+        this.in = in;
+        this.out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8),
+                BUFFER_SIZE), false);
+        this.showPrompts = showPrompts;
+    }
+
+    /**
+     * Reads the next whitespace separated token, first flushing the output if the token has to wait for input.
+     * @return the token, or null at the end of the input.
+     */
+    public String next() {
+        int b = read();
+        while (b >= 0 && Character.isWhitespace(b)) {
+            b = read();
+        }
+        if (b < 0) {
+            return null;
+        }
+        int length = 0;
+        while (b >= 0 && !Character.isWhitespace(b)) {
+            if (length == token.length) {
+                token = Arrays.copyOf(token, length * 2);
+            }
+            token[length++] = (byte) b;
+            b = read();
+        }
+        return new String(token, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes a line of a prompt, unless prompts are left out.
+     * @param line the line to write.
+     */
+    public void prompt(String line) {
+        if (showPrompts) {
+            out.println(line);
+        }
+    }
+
+    /**
+     * Writes a line of output.
+     * @param line the line to write.
+     */
+    public void println(String line) {
+        out.println(line);
+    }
+
+    /**
+     * Writes an empty line of output.
+     */
+    public void println() {
+        out.println();
+    }
+
+    /**
+     * Writes everything buffered so far.
+     */
+    public void flush() {
+        out.flush();
+    }
+
+    private int read() {
+        if (position == limit) {
+            out.flush();    // Whatever was printed must be seen before waiting for the answer.
+            try {
+                limit = in.read(buffer, 0, buffer.length);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            position = 0;
+            if (limit <= 0) {
+                limit = 0;
+                return -1;
+            }
+        }
+        return buffer[position++] & 0xFF;
+    }
+}
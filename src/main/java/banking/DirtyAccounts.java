@@ -0,0 +1,79 @@
+package banking;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps track of the Accounts that need writing to the database, so a flush only touches what changed instead of
+ * scanning every Account. New Accounts and changed Accounts are kept apart so they can be written in separate
+ * batches. Safe to use from several threads.
+ */
+public class DirtyAccounts {
+    private final Set<Account> created = ConcurrentHashMap.newKeySet();
+    private final Set<Account> changed = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Records a new Account that is not in the database yet.
+     * @param account the new Account.
+     */
+    public void markCreated(Account account) {
+        created.add(account);
+    }
+
+    /**
+     * Records that an Account changed. An Account that is not in the database yet is recorded as new instead.
+     * @param account the changed Account.
+     */
+    public void markChanged(Account account) {
+        if (account.isInDatabase()) {
+            changed.add(account);
+        } else {
+            created.add(account);
+        }
+    }
+
+    /**
+     * Stops tracking an Account, such as one that was closed or already written.
+     * @param account the Account to forget.
+     */
+    public void forget(Account account) {
+        created.remove(account);
+        changed.remove(account);
+    }
+
+    /**
+     * Removes and returns every new Account recorded so far.
+     * @return the new Accounts.
+     */
+    public List<Account> drainCreated() {
+        return drain(created);
+    }
+
+    /**
+     * Removes and returns every changed Account recorded so far.
+     * @return the changed Accounts.
+     */
+    public List<Account> drainChanged() {
+        return drain(changed);
+    }
+
+    /**
+     *
+     * @return true if no Account needs writing.
+     */
+    public boolean isEmpty() {
+        return created.isEmpty() && changed.isEmpty();
+    }
+
+    private static List<Account> drain(Set<Account> accounts) {
+        List<Account> drained = new ArrayList<>();
+        for (Account account : accounts) {
+            if (accounts.remove(account)) {  // Skips an Account another thread drained first.
+                drained.add(account);
+            }
+        }
+        return drained;
+    }
+}
@@ -0,0 +1,163 @@
+package banking;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * An AccountStore backed by an open-addressing hash table keyed on the card number packed into a long.
+ * Uses linear probing and backward-shift deletion, so lookups never need to create a String or a boxed key.
+ */
+public class HashAccountStore implements AccountStore {
+    private static final int DEFAULT_CAPACITY = 16;
+    private static final int MAX_LOAD_PERCENT = 60;
+
+    private long[] keys;
+    private Account[] values;   // A null value marks an empty slot.
+    private int mask;
+    private int size = 0;
+
+    public HashAccountStore() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates a store sized to hold the expected number of Accounts without resizing.
+     * @param expectedSize the number of Accounts expected to be stored.
+     */
+    public HashAccountStore(int expectedSize) {
+        int capacity = DEFAULT_CAPACITY;
+        while ((long) capacity * MAX_LOAD_PERCENT / 100 < expectedSize) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    @Override
+    public Account get(String number) {
+        long key = CardNumbers.pack(number);
+        if (key == CardNumbers.INVALID) {
+            return null;
+        }
+        int slot = findSlot(key);
+        return values[slot];
+    }
+
+    @Override
+    public void add(Account account) {
+        long key = CardNumbers.pack(account.getNumber());
+        if (key == CardNumbers.INVALID) {
+            throw new IllegalArgumentException("Not a valid card number: " + account.getNumber());
+        }
+        int slot = findSlot(key);
+        if (values[slot] == null) {
+            if ((long) (size + 1) * 100 > (long) keys.length * MAX_LOAD_PERCENT) {
+                resize();
+                slot = findSlot(key);
+            }
+            size++;
+        }
+        keys[slot] = key;
+        values[slot] = account;
+    }
+
+    @Override
+    public boolean remove(String number) {
+        long key = CardNumbers.pack(number);
+        if (key == CardNumbers.INVALID) {
+            return false;
+        }
+        int slot = findSlot(key);
+        if (values[slot] == null) {
+            return false;
+        }
+        /*
+        Shifts later entries of the probe chain back so no tombstones are needed.
+         */
+        int hole = slot;
+        int next = (hole + 1) & mask;
+        while (values[next] != null) {
+            int home = hash(keys[next]);
+            // Moves the entry into the hole unless its home slot lies cyclically between the hole and its position.
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                keys[hole] = keys[next];
+                values[hole] = values[next];
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        values[hole] = null;
+        size--;
+        return true;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public Iterator<Account> iterator() {
+        return new Iterator<Account>() {
+            private int index = advance(0);
+
+            private int advance(int from) {
+                while (from < values.length && values[from] == null) {
+                    from++;
+                }
+                return from;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return index < values.length;
+            }
+
+            @Override
+            public Account next() {
+                if (index >= values.length) {
+                    throw new NoSuchElementException();
+                }
+                Account account = values[index];
+                index = advance(index + 1);
+                return account;
+            }
+        };
+    }
+
+    /**
+     * Finds the slot holding the given key, or the empty slot where it would be inserted.
+     * @param key the packed card number.
+     * @return the index of the slot.
+     */
+    private int findSlot(long key) {
+        int slot = hash(key);
+        while (values[slot] != null && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;  // Fibonacci hashing spreads the sequential card digits.
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new Account[capacity];
+        mask = capacity - 1;
+    }
+
+    private void resize() {
+        long[] oldKeys = keys;
+        Account[] oldValues = values;
+        allocate(oldKeys.length << 1);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldValues[i] != null) {
+                int slot = findSlot(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package banking;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps credits to a few very busy cards, such as payroll or merchant settlement accounts, out of their balance.
+ *
+ * A credit to a flagged card is added to the card's LongAdder, whose cells are padded to their own cache lines and
+ * spread across the threads adding to them, instead of being added to the balance under the card's lock. Credits to
+ * one card therefore scale with the number of cores instead of queueing on one lock. A card's balance is its stored
+ * balance plus the credits not yet folded into it. Credits are folded into the stored balance while the card's lock is
+ * held, before a debit and when the card is flushed. Credits only ever add money, so a debit that checks the balance
+ * under the lock can never overdraw the card, even while new credits arrive.
+ *
+ * The flagged cards are kept in a small open-addressing table that never changes after startup, so looking a card up
+ * takes no lock, and costs nothing when no card is flagged.
+ */
+public final class HotAccounts {
+    private static final long EMPTY = 0;    // Packed card numbers are never 0, since every card starts with the IIN.
+
+    private static volatile long[] keys = null;
+    private static volatile LongAdder[] cells = null;
+
+    private HotAccounts() {
+    }
+
+    /**
+     * Flags the cards whose credits are kept apart. Must be called once, before any balance changes.
+     * @param numbers the card numbers to flag.
+     * @throws IllegalArgumentException if a card number is not 16 digits.
+     */
+    public static void flag(Collection<String> numbers) {
+        int size = Integer.highestOneBit(Math.max(1, numbers.size() * 2 - 1)) << 1;
+        long[] newKeys = new long[size];
+        LongAdder[] newCells = new LongAdder[size];
+        for (String number : numbers) {
+            long card = CardNumbers.pack(number);
+            if (card == CardNumbers.INVALID) {
+                throw new IllegalArgumentException("Not a valid card number: " + number);
+            }
+            int slot = slotOf(newKeys, card);
+            newKeys[slot] = card;
+            if (newCells[slot] == null) {
+                newCells[slot] = new LongAdder();
+            }
+        }
+        cells = newCells;
+        keys = newKeys;     // Written last, so a reader that sees the keys also sees their cells.
+    }
+
+    /**
+     *
+     * @param number a card number.
+     * @return the credits of the card not yet folded into its balance, or null if the card is not flagged.
+     */
+    static LongAdder creditsOf(String number) {
+        long[] table = keys;
+        if (table == null) {
+            return null;
+        }
+        long card = CardNumbers.pack(number);
+        if (card == CardNumbers.INVALID) {
+            return null;
+        }
+        int slot = slotOf(table, card);
+        return table[slot] == card ? cells[slot] : null;
+    }
+
+    /**
+     *
+     * @param number a card number.
+     * @return the credits of the card not yet folded into its balance, in cents.
+     */
+    static long pendingCredits(String number) {
+        LongAdder credits = creditsOf(number);
+        return credits == null ? 0 : credits.sum();
+    }
+
+    /**
+     * Moves the credits of a card into its stored balance. Must be called while holding the Account's lock, so that
+     * no debit runs in between; a reader without the lock may briefly see the balance short by the folded amount,
+     * but never see it too high.
+     * @param account the Account to fold the credits of.
+     */
+    static void fold(Account account) {
+        LongAdder credits = creditsOf(account.getNumber());
+        if (credits == null) {
+            return;
+        }
+        long pending = credits.sum();
+        if (pending != 0) {
+            credits.add(-pending);
+            account.addToBalance(pending);
+        }
+    }
+
+    private static int slotOf(long[] table, long card) {
+        int mask = table.length - 1;
+        long h = card * 0x9E3779B97F4A7C15L;  // Fibonacci hashing spreads the sequential card digits.
+        int slot = (int) (h ^ (h >>> 32)) & mask;
+        while (table[slot] != EMPTY && table[slot] != card) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+}
@@ -0,0 +1,97 @@
+package banking;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * An AccountStore that loads Accounts on demand the first time they are looked up and keeps at most a fixed number
+ * of them in memory. The least recently used Account is evicted once the cache is full; the eviction handler is
+ * given the chance to write back any unsaved changes before the Account is dropped.
+ */
+public class LazyAccountStore implements AccountStore {
+    private final Function<String, Account> loader;
+    private final Consumer<Account> evictionHandler;
+    private final LinkedHashMap<Long, Account> cache;
+
+    /**
+     * Creates an empty store.
+     * @param capacity the maximum number of Accounts kept in memory.
+     * @param loader loads an Account by card number, returning null if there is none.
+     * @param evictionHandler called with each Account evicted from the cache so its changes can be saved.
+     */
+    public LazyAccountStore(int capacity, Function<String, Account> loader, Consumer<Account> evictionHandler) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Cache capacity must be positive: " + capacity);
+        }
+        this.loader = loader;
+        this.evictionHandler = evictionHandler;
+        this.cache = new LinkedHashMap<Long, Account>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Account> eldest) {
+                if (size() > capacity) {
+                    LazyAccountStore.this.evictionHandler.accept(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    @Override
+    public Account get(String number) {
+        long key = CardNumbers.pack(number);
+        if (key == CardNumbers.INVALID) {
+            return null;
+        }
+        Account account = cache.get(key);
+        if (account == null) {
+            account = loader.apply(number);  // Only reaches the database on a cache miss.
+            if (account != null) {
+                cache.put(key, account);
+            }
+        }
+        return account;
+    }
+
+    @Override
+    public void add(Account account) {
+        long key = CardNumbers.pack(account.getNumber());
+        if (key == CardNumbers.INVALID) {
+            throw new IllegalArgumentException("Not a valid card number: " + account.getNumber());
+        }
+        cache.put(key, account);
+    }
+
+    @Override
+    public boolean remove(String number) {
+        long key = CardNumbers.pack(number);
+        if (key == CardNumbers.INVALID) {
+            return false;
+        }
+        /*
+        An evicted Account is still considered part of the store, so it is looked up before being removed.
+         */
+        return cache.remove(key) != null || loader.apply(number) != null;
+    }
+
+    /**
+     *
+     * @return the number of Accounts currently cached in memory.
+     */
+    @Override
+    public int size() {
+        return cache.size();
+    }
+
+    /**
+     * Iterates over the Accounts currently cached in memory. Evicted Accounts have already been handed to the
+     * eviction handler.
+     */
+    @Override
+    public Iterator<Account> iterator() {
+        return cache.values().iterator();
+    }
+}
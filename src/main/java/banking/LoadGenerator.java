@@ -0,0 +1,107 @@
+package banking;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Drives a running BankServer with many concurrent client sessions and reports session throughput and request
+ * latency percentiles.
+ *
+ * Usage: java banking.LoadGenerator &lt;port&gt; [sessions] [concurrent sessions] [host]
+ *
+ * Each session creates a card, logs into it, adds income, checks the balance and quits.
+ */
+public class LoadGenerator {
+    private static final String[] SESSION_SCRIPT = {"CREATE", "LOGIN", "INCOME 100", "BALANCE", "QUIT"};
+
+    public static void main(String[] args) throws InterruptedException {
+        int port = Integer.parseInt(args[0]);
+        int sessionCount = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+        int concurrency = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+        String host = args.length > 3 ? args[3] : "localhost";
+
+        long[] latencies = new long[sessionCount * SESSION_SCRIPT.length];
+        AtomicInteger recorded = new AtomicInteger();
+        AtomicInteger failures = new AtomicInteger();
+        Semaphore running = new Semaphore(concurrency);    // Caps the number of sessions open at once.
+
+        ExecutorService clients = BankServer.newSessionExecutor();
+        long start = System.nanoTime();
+        for (int i = 0; i < sessionCount; i++) {
+            running.acquire();
+            clients.execute(() -> {
+                try {
+                    runSession(host, port, latencies, recorded);
+                } catch (IOException e) {
+                    failures.incrementAndGet();
+                } finally {
+                    running.release();
+                }
+            });
+        }
+        clients.shutdown();
+        clients.awaitTermination(1, TimeUnit.HOURS);
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        long[] sorted = Arrays.copyOf(latencies, recorded.get());
+        Arrays.sort(sorted);
+        System.out.printf("Sessions: %d (%d failed) in %.2f s%n", sessionCount, failures.get(), seconds);
+        System.out.printf("Sessions/sec: %.0f%n", (sessionCount - failures.get()) / seconds);
+        System.out.printf("Requests/sec: %.0f%n", sorted.length / seconds);
+        System.out.printf("Latency p50: %.3f ms, p99: %.3f ms, max: %.3f ms%n",
+                percentile(sorted, 0.50), percentile(sorted, 0.99), percentile(sorted, 1.0));
+    }
+
+    /**
+     * Runs one scripted session, recording the round trip time of every request.
+     */
+    private static void runSession(String host, int port, long[] latencies, AtomicInteger recorded)
+            throws IOException {
+        try (Socket socket = new Socket(host, port);
+             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                     StandardCharsets.UTF_8));
+             PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(),
+                     StandardCharsets.UTF_8)))) {
+            String card = null;
+            String pin = null;
+            for (String request : SESSION_SCRIPT) {
+                if (request.equals("LOGIN")) {
+                    request = "LOGIN " + card + " " + pin;
+                }
+                long sent = System.nanoTime();
+                out.println(request);
+                out.flush();
+                String reply = in.readLine();
+                latencies[recorded.getAndIncrement()] = System.nanoTime() - sent;
+
+                if (reply == null || !reply.startsWith("OK")) {
+                    throw new IOException("Request " + request + " failed: " + reply);
+                }
+                if (request.equals("CREATE")) {
+                    String[] created = reply.split(" ");
+                    card = created[1];
+                    pin = created[2];
+                }
+            }
+        }
+    }
+
+    private static double percentile(long[] sorted, double fraction) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(fraction * sorted.length) - 1;
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+}
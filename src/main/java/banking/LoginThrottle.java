@@ -0,0 +1,160 @@
+package banking;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts failed logins per card and locks a card out for a while once it has too many.
+ *
+ * The counts live in a fixed size, lock-free open-addressing table of two long arrays: one holds the packed card
+ * numbers, the other the state of each card, packing the number of recent failures and the time of the last one into
+ * a single long so both change together with one compare-and-set. A card's failures are forgotten once the lockout
+ * period has passed since its last failure. When a card's probe sequence is full, its first failure takes over the
+ * slot whose last failure is oldest, preferring cards that are not locked out, so failing logins on many cards can
+ * neither lock out cards that have not failed nor cheaply free a locked out card for more guesses.
+ */
+public class LoginThrottle {
+    private static final int MAX_PROBES = 32;
+    private static final int TIME_BITS = 48;
+    private static final long TIME_MASK = (1L << TIME_BITS) - 1;
+    private static final long EMPTY = 0;    // Packed card numbers are never 0, since every card starts with the IIN.
+    private static final int NOT_FOUND = -1;
+
+    private final AtomicLongArray cards;
+    private final AtomicLongArray states;
+    private final int mask;
+    private final int maxFailures;
+    private final long lockoutMillis;
+
+    /**
+     * Creates an empty throttle.
+     * @param capacity the number of cards that can be tracked at once; rounded up to a power of two.
+     * @param maxFailures the number of failed logins in a row after which a card is locked out.
+     * @param lockoutMillis how long a card stays locked out after its last failed login.
+     */
+    public LoginThrottle(int capacity, int maxFailures, long lockoutMillis) {
+        int size = Integer.highestOneBit(Math.max(MAX_PROBES, capacity) - 1) << 1;
+        cards = new AtomicLongArray(size);
+        states = new AtomicLongArray(size);
+        mask = size - 1;
+        this.maxFailures = maxFailures;
+        this.lockoutMillis = lockoutMillis;
+    }
+
+    /**
+     * Checks whether a card is locked out.
+     * @param card the packed card number.
+     * @param now the current time in milliseconds.
+     * @return true if logins to the card must be refused without checking the PIN.
+     */
+    public boolean isLockedOut(long card, long now) {
+        int slot = find(card, now, false);
+        if (slot == NOT_FOUND) {
+            return false;
+        }
+        return isLocked(states.get(slot), now);
+    }
+
+    /**
+     * Records a failed login to a card.
+     * @param card the packed card number.
+     * @param now the current time in milliseconds.
+     */
+    public void recordFailure(long card, long now) {
+        int slot = find(card, now, true);
+        long state;
+        long updated;
+        do {
+            state = states.get(slot);
+            long failures = isExpired(state, now) ? 1 : Math.min(failures(state) + 1, Short.MAX_VALUE);
+            updated = failures << TIME_BITS | (now & TIME_MASK);
+        } while (!states.compareAndSet(slot, state, updated));
+    }
+
+    /**
+     * Forgets the failed logins of a card, after a successful login.
+     * @param card the packed card number.
+     */
+    public void clear(long card) {
+        int slot = find(card, 0, false);
+        if (slot >= 0) {
+            states.set(slot, 0);
+        }
+    }
+
+    /**
+     * Finds the slot of a card, optionally claiming a slot for it: an empty one if there is one, and otherwise the
+     * one whose last failure is oldest, preferring a card that is not locked out.
+     * @return the slot, or NOT_FOUND if the card has none and none was claimed.
+     */
+    private int find(long card, long now, boolean claim) {
+        int home = hash(card);
+        while (true) {
+            int victim = NOT_FOUND;
+            long victimCard = EMPTY;
+            long victimState = 0;
+            for (int i = 0; i < MAX_PROBES; i++) {
+                int slot = (home + i) & mask;
+                long current = cards.get(slot);
+                if (current == card) {
+                    return slot;
+                }
+                if (current == EMPTY) {
+                    if (!claim) {
+                        return NOT_FOUND;   // Slots are only ever taken over, so it is not further along.
+                    }
+                    if (cards.compareAndSet(slot, EMPTY, card) || cards.get(slot) == card) {
+                        return slot;
+                    }
+                    continue;
+                }
+                long state = states.get(slot);
+                if (victim == NOT_FOUND || isBetterVictim(state, victimState, now)) {
+                    victim = slot;
+                    victimCard = current;
+                    victimState = state;
+                }
+            }
+            if (!claim) {
+                return NOT_FOUND;
+            }
+            if (cards.compareAndSet(victim, victimCard, card)) {
+                states.compareAndSet(victim, victimState, 0);
+                return victim;
+            }
+            // Another card changed the slot first; looks again.
+        }
+    }
+
+    /**
+     * Checks whether a slot is a better one to take over than the best found so far: a card that is not locked out
+     * goes before one that is, and then the card whose last failure is older.
+     */
+    private boolean isBetterVictim(long state, long best, long now) {
+        boolean locked = isLocked(state, now);
+        if (locked != isLocked(best, now)) {
+            return !locked;
+        }
+        return age(state, now) > age(best, now);
+    }
+
+    private boolean isLocked(long state, long now) {
+        return failures(state) >= maxFailures && !isExpired(state, now);
+    }
+
+    private boolean isExpired(long state, long now) {
+        return age(state, now) >= lockoutMillis;
+    }
+
+    private static long age(long state, long now) {
+        return (now & TIME_MASK) - (state & TIME_MASK);
+    }
+
+    private static long failures(long state) {
+        return state >>> TIME_BITS;
+    }
+
+    private int hash(long card) {
+        long h = card * 0x9E3779B97F4A7C15L;  // Fibonacci hashing spreads the sequential card digits.
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+}
@@ -0,0 +1,97 @@
+package banking;
+
+/**
+ * Computes and checks Luhn check digits without allocating, working either on the digits of a CharSequence or on
+ * a card number packed into a long.
+ */
+public final class Luhn {
+    /**
+     * The Luhn value of each digit once doubled: the doubled digit, minus 9 if it is greater than 9.
+     */
+    private static final int[] DOUBLED = {0, 2, 4, 6, 8, 1, 3, 5, 7, 9};
+
+    /**
+     * Returned by checkDigit() when the prefix contains a character that is not a digit.
+     */
+    public static final int INVALID = -1;
+
+    private Luhn() {
+    }
+
+    /**
+     * Calculates the check digit that makes the given prefix a valid Luhn number.
+     * @param prefix the digits of a card number without its check digit.
+     * @return the check digit, or INVALID if the prefix is empty or contains anything but digits.
+     */
+    public static int checkDigit(CharSequence prefix) {
+        int sum = sumDigits(prefix, prefix.length(), true);
+        return sum < 0 ? INVALID : (10 - sum % 10) % 10;
+    }
+
+    /**
+     * Calculates the check digit that makes the given prefix a valid Luhn number.
+     * @param prefix the digits of a card number without its check digit, packed into a long.
+     * @return the check digit.
+     */
+    public static int checkDigit(long prefix) {
+        return (10 - sumDigits(prefix, true) % 10) % 10;
+    }
+
+    /**
+     * Checks whether a card number passes the Luhn algorithm.
+     * @param number the full card number, check digit last.
+     * @return true if the number is made of at least two digits and its check digit is correct.
+     */
+    public static boolean isValid(CharSequence number) {
+        if (number == null || number.length() < 2) {
+            return false;
+        }
+        int sum = sumDigits(number, number.length(), false);
+        return sum >= 0 && sum % 10 == 0;
+    }
+
+    /**
+     * Checks whether a card number packed into a long passes the Luhn algorithm.
+     * @param number the full card number, check digit last.
+     * @return true if the check digit is correct.
+     */
+    public static boolean isValid(long number) {
+        return number >= 0 && sumDigits(number, false) % 10 == 0;
+    }
+
+    /**
+     * Sums the Luhn values of the first length digits, walking from the rightmost one.
+     * @param digits the characters to sum.
+     * @param length the number of characters to sum.
+     * @param doubleFirst whether the rightmost digit is doubled.
+     * @return the sum, or -1 if there are no digits or a character is not a digit.
+     */
+    private static int sumDigits(CharSequence digits, int length, boolean doubleFirst) {
+        if (length == 0) {
+            return -1;
+        }
+        int sum = 0;
+        boolean doubled = doubleFirst;
+        for (int i = length - 1; i >= 0; i--) {
+            int digit = digits.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            sum += doubled ? DOUBLED[digit] : digit;
+            doubled = !doubled;
+        }
+        return sum;
+    }
+
+    private static int sumDigits(long digits, boolean doubleFirst) {
+        int sum = 0;
+        boolean doubled = doubleFirst;
+        while (digits != 0) {
+            int digit = (int) (digits % 10);
+            sum += doubled ? DOUBLED[digit] : digit;
+            doubled = !doubled;
+            digits /= 10;
+        }
+        return sum;
+    }
+}
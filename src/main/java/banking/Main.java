@@ -2,12 +2,22 @@ package banking;
 
 import org.sqlite.SQLiteDataSource;
 
-import java.sql.Connection;
-import java.sql.ResultSet;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.sql.SQLException;
-import java.sql.Statement;
+import java.time.Instant;
 import java.util.ArrayList;
-import java.util.Scanner;
+import java.util.Arrays;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 public class Main {
     /*
@@ -20,14 +30,159 @@ public class Main {
     private final static String DO_TRANSFER = "3";
     private final static String CLOSE_ACCOUNT = "4";
     private final static String LOG_OUT = "5";
+    private final static String STATEMENT = "6";
+    private final static String NEXT_PAGE = "1";
     private final static String EXIT = "0";
+    final static int STATEMENT_PAGE_SIZE = 10;
+    private final static DateTimeFormatter STATEMENT_TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")
+            .withZone(ZoneId.systemDefault());
+
+    /*
+    Command line options
+     */
+    private final static String FILE_NAME_OPTION = "-fileName";
+    private final static String LOAD_MODE_OPTION = "-loadMode";
+    private final static String CACHE_SIZE_OPTION = "-cacheSize";
+    private final static String LAZY_LOAD_MODE = "lazy";
+    private final static String DEFAULT_CACHE_SIZE = "10000";
+    private final static String JOURNAL_OPTION = "-journal";
+    private final static String CHECKPOINT_INTERVAL_OPTION = "-checkpointInterval";
+    private final static String DEFAULT_CHECKPOINT_INTERVAL = "30";
+    private final static String PORT_OPTION = "-port";
+    private final static String PROVISION_OPTION = "-provision";
+    private final static String PROVISION_OUTPUT_OPTION = "-provisionOutput";
+    private final static String WRITE_QUEUE_OPTION = "-writeQueue";
+    private final static String EXPORT_OPTION = "-export";
+    private final static String IMPORT_OPTION = "-import";
+    private final static String STORE_OPTION = "-store";
+    private final static String STORE_CAPACITY_OPTION = "-storeCapacity";
+    private final static String DEFAULT_STORE_CAPACITY = "1000000";
+    private final static String METRICS_DUMP_OPTION = "-metricsDump";
+    private final static String METRICS_INTERVAL_OPTION = "-metricsInterval";
+    private final static String DEFAULT_METRICS_INTERVAL = "60";
+    private final static String BATCH_OPTION = "-batch";
+    private final static String SETTLE_OPTION = "-settle";
+    private final static String SETTLE_REPORT_OPTION = "-settleReport";
+    private final static String LOGIN_CACHE_SIZE_OPTION = "-loginCacheSize";
+    private final static String DEFAULT_LOGIN_CACHE_SIZE = "10000";
+    private final static String MAX_FAILED_LOGINS_OPTION = "-maxFailedLogins";
+    private final static String DEFAULT_MAX_FAILED_LOGINS = "5";
+    private final static String LOCKOUT_SECONDS_OPTION = "-lockoutSeconds";
+    private final static String DEFAULT_LOCKOUT_SECONDS = "300";
+    private final static String LOGIN_THROTTLE_SIZE_OPTION = "-loginThrottleSize";
+    private final static String DEFAULT_LOGIN_THROTTLE_SIZE = "1048576";
+    private final static String SHARDS_OPTION = "-shards";
+    private final static String DEFAULT_SHARDS = "1";
+    private final static String LOAD_THREADS_OPTION = "-loadThreads";
+    private final static String HOT_ACCOUNTS_OPTION = "-hotAccounts";
+    private final static String TRANSFER_LIMITS_OPTION = "-transferLimits";
+    private final static String INCOME_LIMITS_OPTION = "-incomeLimits";
+
+    /*
+    Checks PINs and locks cards out after too many failed logins. Keeps no PIN hashes until the database is open.
+     */
+    private static Authenticator authenticator = new Authenticator(null,
+            Integer.parseInt(DEFAULT_LOGIN_CACHE_SIZE), Integer.parseInt(DEFAULT_MAX_FAILED_LOGINS),
+            TimeUnit.SECONDS.toMillis(Long.parseLong(DEFAULT_LOCKOUT_SECONDS)),
+            Integer.parseInt(DEFAULT_LOGIN_THROTTLE_SIZE));
+
+    /*
+    Reads menu input and buffers menu output; reads a command file instead of the console in batch mode.
+     */
+    private static ConsoleIO console = new ConsoleIO(System.in, System.out, true);
+
+    /*
+    Metrics for logins, transfers and saves
+     */
+    private static final LongAdder LOGINS = Metrics.counter("login.success");
+    private static final LongAdder FAILED_LOGINS = Metrics.counter("login.failed");
+    private static final LongAdder LOCKED_OUT_LOGINS = Metrics.counter("login.lockedOut");
+    private static final LongAdder TRANSFERS = Metrics.counter("transfer.success");
+    private static final LongAdder SAME_ACCOUNT_TRANSFERS = Metrics.counter("transfer.sameAccount");
+    private static final LongAdder INSUFFICIENT_FUNDS = Metrics.counter("transfer.insufficientFunds");
+    private static final LongAdder LIMITED_TRANSFERS = Metrics.counter("transfer.limitReached");
+    private static final LongAdder LIMITED_INCOMES = Metrics.counter("income.limitReached");
+    private static final LatencyHistogram LOGIN_LATENCY = Metrics.histogram("login");
+    private static final LatencyHistogram TRANSFER_LATENCY = Metrics.histogram("transfer");
+    private static final LatencyHistogram SAVE_LATENCY = Metrics.histogram("saveChanges");
+
+    /*
+    Write-ahead journal of account changes, or null when journaling is turned off.
+     */
+    private static TransactionJournal journal = null;
+
+    /*
+    Applies every balance change, so that changes are thread-safe and reach the journal in order.
+     */
+    private static final TransferService transferService = new TransferService(Main::accountChanged);
+
+    /*
+    Accounts created or changed since the last flush to the database.
+     */
+    static final DirtyAccounts dirtyAccounts = new DirtyAccounts();
+
+    /*
+    Writes changes to the database in the background, or null when changes are saved at exit instead.
+     */
+    private static PersistenceWriter writer = null;
+
+    /*
+    Every income and transfer, for statements, or null until the database is open.
+     */
+    private static TransactionHistory history = null;
+
+    /*
+    Velocity limits on the transfers out of a card and the income into it, or null when there are none.
+     */
+    private static VelocityLimiter transferLimits = null;
+    private static VelocityLimiter incomeLimits = null;
 
     public static void main(String[] args) {
 
-        String dataBaseName = args[1]; // The second argument (args[1]) passed is the database file name.
+        String dataBaseName = getOption(args, FILE_NAME_OPTION, args[1]); // Defaults to the second argument.
 
         String url = "jdbc:sqlite:.\\" + dataBaseName; // Stores the path to the database file.
 
+        /*
+        Refuses to serve clients from a lazy store. A session keeps its logged in Account, which the store may evict
+        and load again as a second copy, so one copy's changes would overwrite the other's.
+         */
+        if (getOption(args, PORT_OPTION, null) != null
+                && LAZY_LOAD_MODE.equals(getOption(args, LOAD_MODE_OPTION, ""))) {
+            System.out.println("Cannot serve clients with lazy loading; leave out -loadMode lazy, or use -store.");
+            return;
+        }
+
+        /*
+        Publishes metrics over JMX, and appends them to a file at a fixed interval if one was given.
+         */
+        Metrics.registerMBean();
+        String metricsDump = getOption(args, METRICS_DUMP_OPTION, null);
+        if (metricsDump != null) {
+            Metrics.startDump(Paths.get(metricsDump),
+                    Long.parseLong(getOption(args, METRICS_INTERVAL_OPTION, DEFAULT_METRICS_INTERVAL)));
+        }
+
+        /*
+        Keeps credits to the given busy cards in striped cells, so they do not queue on the cards' locks.
+         */
+        String hotAccounts = getOption(args, HOT_ACCOUNTS_OPTION, null);
+        if (hotAccounts != null) {
+            HotAccounts.flag(Arrays.asList(hotAccounts.split(",")));
+        }
+
+        /*
+        Limits how many transfers and incomes, and how much money, a card may move per minute and per hour.
+         */
+        String transferRules = getOption(args, TRANSFER_LIMITS_OPTION, null);
+        if (transferRules != null) {
+            transferLimits = new VelocityLimiter("transfers", transferRules);
+        }
+        String incomeRules = getOption(args, INCOME_LIMITS_OPTION, null);
+        if (incomeRules != null) {
+            incomeLimits = new VelocityLimiter("incomes", incomeRules);
+        }
+
         /*
         Creates an SQLite data source and sets its location.
          */
@@ -35,24 +190,336 @@ public class Main {
         dataSource.setUrl(url);
 
         /*
-        Creates a table of card accounts if one doesn't already exist.
+        Reads the menu input from a command file instead of the console in batch mode, printing only results.
+         */
+        String batchFile = getOption(args, BATCH_OPTION, null);
+        if (batchFile != null) {
+            try {
+                console = new ConsoleIO(Files.newInputStream(Paths.get(batchFile)), System.out, false);
+            } catch (IOException e) {
+                e.printStackTrace();
+                return;
+            }
+        }
+
+        /*
+        Opens the database, creating a table of card accounts if one doesn't already exist. With more than one
+        shard, the cards are spread across the files <fileName>.0, <fileName>.1 and so on instead. A file written as
+        one shard of several is refused on its own, and shard files are refused with another number of shards.
          */
-        createTable(dataSource);
+        int shards = Integer.parseInt(getOption(args, SHARDS_OPTION, DEFAULT_SHARDS));
+        int loadThreads = Integer.parseInt(getOption(args, LOAD_THREADS_OPTION,
+                String.valueOf(Runtime.getRuntime().availableProcessors())));
+        AccountRepository repository;
+        try {
+            repository = shards > 1 ? openShards(url, shards, loadThreads) : openUnsharded(dataSource, loadThreads);
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return;
+        }
+
+        /*
+        Moves the database on to a new generation before anything changes it, so a mapped store file from an earlier
+        run can tell whether the database changed without it.
+         */
+        long generation;
+        try {
+            generation = repository.advanceGeneration();
+        } catch (SQLException e) {
+            e.printStackTrace();
+            repository.close();
+            return;
+        }
+
+        /*
+        Keeps salted PIN hashes in the database.
+         */
+        authenticator = new Authenticator(repository,
+                Integer.parseInt(getOption(args, LOGIN_CACHE_SIZE_OPTION, DEFAULT_LOGIN_CACHE_SIZE)),
+                Integer.parseInt(getOption(args, MAX_FAILED_LOGINS_OPTION, DEFAULT_MAX_FAILED_LOGINS)),
+                TimeUnit.SECONDS.toMillis(Long.parseLong(getOption(args, LOCKOUT_SECONDS_OPTION,
+                        DEFAULT_LOCKOUT_SECONDS))),
+                Integer.parseInt(getOption(args, LOGIN_THROTTLE_SIZE_OPTION, DEFAULT_LOGIN_THROTTLE_SIZE)));
+
+        /*
+        Opens the write-ahead journal if one was requested, replaying anything a crashed session left behind.
+         */
+        String journalPath = getOption(args, JOURNAL_OPTION, null);
+        if (journalPath != null) {
+            long checkpointSeconds = Long.parseLong(getOption(args, CHECKPOINT_INTERVAL_OPTION,
+                    DEFAULT_CHECKPOINT_INTERVAL));
+            try {
+                journal = new TransactionJournal(Paths.get(journalPath),
+                        repository::applyJournal, checkpointSeconds);
+                transferService.setOrderedCredits(true);    // The journal keeps whole balances, last one wins.
+            } catch (IOException | SQLException e) {
+                e.printStackTrace();
+                repository.close();
+                return; // Starting without replaying the journal would lose the changes it holds.
+            }
+        }
+
+        /*
+        Creates a batch of new accounts straight in the database instead of running a session, if requested.
+         */
+        String provisionCount = getOption(args, PROVISION_OPTION, null);
+        if (provisionCount != null && shards > 1) {
+            System.out.println("Cannot provision into shards; provision one file, then export it and import it.");
+            closeJournal();
+            repository.close();
+            return;
+        }
+        if (provisionCount != null) {
+            provisionAccounts(Integer.parseInt(provisionCount), getOption(args, PROVISION_OUTPUT_OPTION, null),
+                    dataSource);
+            closeJournal();
+            repository.close();
+            return;
+        }
+
+        /*
+        Copies the card table to or from an archive file instead of running a session, if requested.
+         */
+        String exportFile = getOption(args, EXPORT_OPTION, null);
+        String importFile = getOption(args, IMPORT_OPTION, null);
+        if (exportFile != null || importFile != null) {
+            if (importFile != null) {
+                importCards(importFile, repository);
+            }
+            if (exportFile != null) {
+                exportCards(exportFile, repository);
+            }
+            closeJournal();
+            repository.close();
+            return;
+        }
 
         /*
-        Creates an Array List that stores existing accounts in the database as well as any new cards created during
-        a session.
+        Starts writing changes in the background as they happen, if a queue size was given.
          */
-        ArrayList<Account> sessionAccounts = new ArrayList<>();
+        String writeQueue = getOption(args, WRITE_QUEUE_OPTION, null);
+        if (writeQueue != null) {
+            writer = new PersistenceWriter(repository, Integer.parseInt(writeQueue));
+        }
 
         /*
-        Populates sessionAccounts with Accounts store in the database.
+        Creates an account store that holds existing accounts in the database as well as any new cards created during
+        a session, indexed by card number.
          */
-        getExistingAccounts(sessionAccounts, dataSource);
+        AccountStore sessionAccounts;
+        MappedAccountStore mappedAccounts = null;
+        String storeFile = getOption(args, STORE_OPTION, null);
+
+        if (LAZY_LOAD_MODE.equals(getOption(args, LOAD_MODE_OPTION, ""))) {
+            /*
+            Loads Accounts from the database only when they are first needed, keeping a bounded number in memory.
+             */
+            int cacheSize = Integer.parseInt(getOption(args, CACHE_SIZE_OPTION, DEFAULT_CACHE_SIZE));
+            sessionAccounts = new LazyAccountStore(cacheSize,
+                    number -> findAccount(number, repository),
+                    account -> {
+                        transferService.fold(account); // The credits of a hot card would otherwise count twice.
+                        saveAccount(account, repository); // Written now, so it no longer needs a flush.
+                        dirtyAccounts.forget(account);
+                    });
+        } else if (storeFile != null) {
+            /*
+            Keeps the accounts off the heap in a memory-mapped file, which is simply mapped again if it was closed
+            cleanly in step with the database, and filled from the database again otherwise.
+             */
+            int capacity = Integer.parseInt(getOption(args, STORE_CAPACITY_OPTION, DEFAULT_STORE_CAPACITY));
+            try {
+                mappedAccounts = new MappedAccountStore(Paths.get(storeFile), capacity);
+            } catch (IOException e) {
+                e.printStackTrace();
+                closeJournal();
+                repository.close();
+                return;
+            }
+            boolean current = mappedAccounts.isCurrent(generation - 1);
+            mappedAccounts.stamp(generation);   // A crash while filling the file leaves it to be filled again.
+            if (!current) {
+                mappedAccounts.clear();
+                getExistingAccounts(mappedAccounts, repository);
+            }
+            sessionAccounts = mappedAccounts;
+        } else {
+            sessionAccounts = new HashAccountStore();
+
+            /*
+            Populates sessionAccounts with Accounts store in the database.
+             */
+            getExistingAccounts(sessionAccounts, repository);
+        }
 
         //printExistingRecords(sessionAccounts); // used for testing
 
+        /*
+        Records every income and transfer in the transaction table, in batches written in the background.
+         */
+        history = new TransactionHistory(repository);
+
+        String port = getOption(args, PORT_OPTION, null);
+        String settleFile = getOption(args, SETTLE_OPTION, null);
+        if (settleFile != null) {
+            settleTransfers(settleFile, getOption(args, SETTLE_REPORT_OPTION, settleFile + ".report"),
+                    sessionAccounts);
+        } else if (port != null) {
+            sessionAccounts = new SynchronizedAccountStore(sessionAccounts); // Sessions share it across threads.
+            serveClients(Integer.parseInt(port), sessionAccounts, repository);
+        } else {
+            runMainMenu(sessionAccounts, repository);
+            console.flush();
+        }
+
+        saveChanges(dirtyAccounts, repository); // Updates database to reflect new Accounts and changes to old accounts.
+        if (writer != null) {
+            writer.close(); // Waits for the background writer to save everything still queued.
+        }
+        history.close(); // Writes the last batch of the history.
+        closeJournal();
+        if (mappedAccounts != null) {
+            try {
+                mappedAccounts.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        repository.close();
+        if (metricsDump != null) {
+            Metrics.dump(Paths.get(metricsDump)); // Records the totals for the whole session.
+        }
+
+        //printExistingRecords(sessionAccounts); // only used for testing
+    }
 
+    /**
+     * Opens a database kept in one file, checking that the file is not one shard of several.
+     * @param dataSource the data source of the database file.
+     * @param loadThreads the number of connections the cards are loaded on at once.
+     * @return the database.
+     * @throws SQLException if the database cannot be opened, or the file holds one shard of several.
+     */
+    private static AccountRepository openUnsharded(SQLiteDataSource dataSource, int loadThreads) throws SQLException {
+        SqliteAccountRepository repository = new SqliteAccountRepository(dataSource, loadThreads);
+        try {
+            repository.claimShard(0, 1);
+        } catch (SQLException e) {
+            repository.close();
+            throw e;
+        }
+        return repository;
+    }
+
+    /**
+     * Opens a database spread across several shard files.
+     * @param url the URL of the unsharded database; shard i is kept in the file with ".i" appended.
+     * @param count the number of shards.
+     * @param loadThreads the number of connections the cards are loaded on at once, shared between the shards.
+     * @return the sharded database.
+     * @throws SQLException if a shard cannot be opened.
+     */
+    private static AccountRepository openShards(String url, int count, int loadThreads) throws SQLException {
+        List<SQLiteDataSource> shards = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            SQLiteDataSource shard = new SQLiteDataSource();
+            shard.setUrl(url + "." + i);
+            shards.add(shard);
+        }
+        return new ShardedAccountRepository(shards, loadThreads);
+    }
+
+    /**
+     * Closes the write-ahead journal if there is one, folding the rest of it into the database.
+     */
+    private static void closeJournal() {
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Creates a batch of new accounts with unique card numbers in the database.
+     * @param count the number of accounts to create.
+     * @param outputFile the file to list the new cards and their PINs in, or null to not list them.
+     * @param data the connection to the database.
+     */
+    private static void provisionAccounts(int count, String outputFile, SQLiteDataSource data) {
+        long start = System.nanoTime();
+        try (PrintWriter cardOutput = outputFile == null ? null
+                : new PrintWriter(Files.newBufferedWriter(Paths.get(outputFile)))) {
+            new AccountProvisioner(data).provision(count, cardOutput);
+            System.out.printf("Created %d cards in %.2f s%n", count, (System.nanoTime() - start) / 1e9);
+        } catch (IOException | SQLException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Writes every card in the database to an archive file.
+     * @param file the archive file to write.
+     * @param repository the database.
+     */
+    private static void exportCards(String file, AccountRepository repository) {
+        long start = System.nanoTime();
+        try {
+            long count = CardArchive.export(repository, Paths.get(file));
+            System.out.printf("Exported %d cards in %.2f s%n", count, (System.nanoTime() - start) / 1e9);
+        } catch (IOException | SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Reads every card in an archive file into the database.
+     * @param file the archive file to read.
+     * @param repository the database.
+     */
+    private static void importCards(String file, AccountRepository repository) {
+        long start = System.nanoTime();
+        try {
+            long count = CardArchive.importInto(repository, Paths.get(file));
+            System.out.printf("Imported %d cards in %.2f s%n", count, (System.nanoTime() - start) / 1e9);
+        } catch (IOException | SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Applies a file of transfer records in parallel and writes a report of the outcome of each one. The changed
+     * accounts are saved together with the rest of the session.
+     * @param recordFile the file of "from,to,amount" records.
+     * @param reportFile the file to write the report to.
+     * @param accounts the store of accounts.
+     */
+    private static void settleTransfers(String recordFile, String reportFile, AccountStore accounts) {
+        long start = System.nanoTime();
+        BatchSettlement settlement = new BatchSettlement(accounts, ForkJoinPool.commonPool());
+        try (BufferedReader records = Files.newBufferedReader(Paths.get(recordFile));
+             PrintWriter report = new PrintWriter(Files.newBufferedWriter(Paths.get(reportFile)))) {
+            settlement.settle(records, report);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        System.out.printf("Settled transfers in %.2f s%n", (System.nanoTime() - start) / 1e9);
+        for (BatchSettlement.Outcome outcome : BatchSettlement.Outcome.values()) {
+            System.out.printf("%s: %d%n", outcome, settlement.count(outcome));
+        }
+    }
+
+    /**
+     * Runs the interactive menu on the console until the user exits.
+     * @param sessionAccounts the store of accounts for the session.
+     * @param repository the database.
+     */
+    private static void runMainMenu(AccountStore sessionAccounts, AccountRepository repository) {
         boolean continueMainMenu = true; // Controls the outer menu loop that displays the main menu.
 
         /*
@@ -63,7 +530,7 @@ public class Main {
 
             switch (mainMenuChoice) {
                 case CREATE_ACCOUNT:
-                    sessionAccounts.add(createAccount()); // Creates a new account and adds it to the account Array.
+                    createAccount(sessionAccounts); // Creates a new account and adds it to the store.
                     break;
                 case LOG_INTO_ACCOUNT:
                     Account userAccount = loginToAccount(sessionAccounts); // Stores the logged-into account.
@@ -72,7 +539,7 @@ public class Main {
                     If the login was successful and returned an account, display the account menu.
                      */
                     if (userAccount != null) {
-                        System.out.println("You have successfully logged in!\n");
+                        console.println("You have successfully logged in!\n");
                         boolean loggedIn = true;
 
                         while (loggedIn) {
@@ -80,17 +547,23 @@ public class Main {
 
                             switch (acctMenuChoice) {
                                 case CHECK_BALANCE:
-                                    System.out.println("\nBalance: " + userAccount.getBalance());
-                                    System.out.println();
+                                    console.println("\nBalance: " + Money.format(userAccount.getBalance()));
+                                    console.println();
                                     break;
                                 case ADD_INCOME:
-                                    System.out.println("Enter income:");
-                                    double incomeAmount = getAmount(); // Gets the amount to add from the user.
-                                    addIncome(userAccount, incomeAmount);// Adds the income to the account.
-                                    System.out.println("Income was added!");
+                                    console.prompt("Enter income:");
+                                    long incomeAmount = getAmount(); // Gets the amount to add from the user.
+                                    try {
+                                        addIncome(userAccount, incomeAmount);// Adds the income to the account.
+                                    } catch (IllegalArgumentException e) {   // A limit or a bad amount.
+                                        console.println(e.getMessage() + "!");
+                                        break;
+                                    }
+                                    sessionAccounts.add(userAccount); // Keeps the changed account in the store.
+                                    console.println("Income was added!");
                                     break;
                                 case DO_TRANSFER:
-                                    System.out.println("Transfer");
+                                    console.prompt("Transfer");
 
                                     /*
                                     Calls validDateCard() to get the card number and ensure it passes Luhn algorithm.
@@ -112,21 +585,31 @@ public class Main {
                                             // todo: may need to put try statement here as we can't use "break" under the sout "not enough money"
 
                                             transferFunds(userAccount, receivingAccount); // todo: need to test this @test
+
+                                            /*
+                                            Keeps both changed accounts in the store, even if a lazily loaded store
+                                            evicted one of them in the meantime.
+                                             */
+                                            sessionAccounts.add(userAccount);
+                                            sessionAccounts.add(receivingAccount);
                                         } else {
-                                            System.out.println("Such a card does not exist");
+                                            console.println("Such a card does not exist");
                                         }
                                     }
                                     break;
                                 case CLOSE_ACCOUNT:
-                                    closeAccount(userAccount, sessionAccounts, dataSource);
+                                    closeAccount(userAccount, sessionAccounts, repository);
                                     loggedIn = false;
                                     break;
+                                case STATEMENT:
+                                    showStatement(userAccount);
+                                    break;
                                 case LOG_OUT:
-                                    System.out.println("\nYou have successfully logged out!\n");
+                                    console.println("\nYou have successfully logged out!\n");
                                     loggedIn = false;
                                     break;
                                 case EXIT:
-                                    System.out.println("\nBye!\n");
+                                    console.println("\nBye!\n");
                                     loggedIn = false;
                                     continueMainMenu = false;
                                     break;
@@ -135,47 +618,108 @@ public class Main {
                     }
                     break; // If no account was logged into, returns to the main menu.
                 case EXIT:
-                    System.out.println("\nBye!\n");
+                    console.println("\nBye!\n");
                     continueMainMenu = false; // Ends the program.
                     break;
             }
         } while (continueMainMenu);
+    }
 
-        saveChanges(sessionAccounts, dataSource); // Updates database to reflect new Accounts and changes to old accounts.
+    /**
+     * Serves the menu to network clients until "0" is entered on the console.
+     * @param port the port to listen on.
+     * @param sessionAccounts the thread-safe store of accounts shared by every client.
+     * @param repository the database.
+     */
+    private static void serveClients(int port, AccountStore sessionAccounts, AccountRepository repository) {
+        try (BankServer server = new BankServer(port, sessionAccounts, repository)) {
+            System.out.println("Listening on port " + server.getPort() + ". Enter 0 to stop.");
+            String answer = console.next();
+            while (answer != null && !answer.equals(EXIT)) {
+                console.prompt("Enter 0 to stop.");
+                answer = console.next();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
 
-        //printExistingRecords(sessionAccounts); // only used for testing
+    /**
+     * Records a balance change, so the Account is written by the background writer or at the next flush, and
+     * reaches the journal if there is one.
+     * Called by the TransferService while it holds the Account's lock.
+     * @param acc the changed Account.
+     */
+    private static void accountChanged(Account acc) {
+        if (writer != null) {
+            writer.update(acc);
+        } else {
+            dirtyAccounts.markChanged(acc);
+        }
+        if (journal != null) {
+            journal.logBalance(acc);
+        }
     }
 
     /**
-     * Given an array of Accounts and a connection to a database, saves/updates Accounts in database.
-     * @param accounts array of Accounts to check for changes to save.
-     * @param data the connection to the database.
+     * Saves/updates in the database only the Accounts created or changed since the last flush.
+     * @param dirty the Accounts waiting to be written.
+     * @param repository the database.
      */
-    private static void saveChanges(ArrayList<Account> accounts, SQLiteDataSource data) {
-        for (Account acc : accounts) {
-            if (acc.isInDatabase() && acc.isUnsaved()) {
-                updateDatabase(acc, data);
-                acc.setUnsaved(false); // Flag the account as having changes saved.
-            } else if (!acc.isInDatabase()) {
-                addToDatabase(acc, data);
+    static void saveChanges(DirtyAccounts dirty, AccountRepository repository) {
+        long start = System.nanoTime();
+        List<Account> newAccounts = dirty.drainCreated();
+        List<Account> changedAccounts = dirty.drainChanged();
+        if (newAccounts.isEmpty() && changedAccounts.isEmpty()) {
+            return;
+        }
+        for (Account acc : changedAccounts) {
+            transferService.fold(acc); // Moves the credits a hot account holds apart into its stored balance.
+        }
+
+        /*
+        Writes every change in batches in a single transaction, so the whole flush costs one commit.
+         */
+        try {
+            repository.saveAll(newAccounts, changedAccounts);
+        } catch (SQLException e) {
+            e.printStackTrace();
+
+            /*
+            Nothing was saved, so the accounts go back to wait for the next flush.
+             */
+            for (Account acc : newAccounts) {
+                dirty.markCreated(acc);
+            }
+            for (Account acc : changedAccounts) {
+                dirty.markChanged(acc);
             }
+            return;
         }
+
+        for (Account acc : newAccounts) {
+            acc.setInDatabase(true); // Flag the account as now having a place in the database.
+        }
+        for (Account acc : changedAccounts) {
+            acc.setUnsaved(false); // Flag the account as having changes saved.
+        }
+        SAVE_LATENCY.record(System.nanoTime() - start);
     }
 
     /**
-     * Given an Account and a connection to a database, adds the Account to the database.
-     * @param account the Account to add to the database.
-     * @param data the connection to the database.
+     * Saves a single Account to the database if it is new or has unsaved changes.
+     * @param acc the Account to save.
+     * @param repository the database.
      */
-    private static void addToDatabase(Account account, SQLiteDataSource data) {
-        try (Connection con = data.getConnection()) {
-            try (Statement statement = con.createStatement()) {
-                statement.executeUpdate("INSERT INTO card (number, pin, balance) VALUES " +
-                        "('" + account.getNumber() + "', '" + account.getPin() + "', " + account.getBalance() + ")");
-            } catch (SQLException e) {
-                e.printStackTrace();
+    private static void saveAccount(Account acc, AccountRepository repository) {
+        try {
+            if (acc.isInDatabase() && acc.isUnsaved()) {
+                repository.update(acc);
+                acc.setUnsaved(false); // Flag the account as having changes saved.
+            } else if (!acc.isInDatabase()) {
+                repository.insert(acc);
+                acc.setInDatabase(true); // Flag the account as now having a place in the database.
             }
-
         } catch (SQLException e) {
             e.printStackTrace();
         }
@@ -187,123 +731,139 @@ public class Main {
      * @param targetAccount the Account to add funds to.
      */
     private static void transferFunds(Account sourceAccount, Account targetAccount) {
-        System.out.println("Enter how much you want to transfer");
-        double transferAmount = getAmount();
+        console.prompt("Enter how much you want to transfer");
+        long transferAmount = getAmount();
 
-        if (sourceAccount == targetAccount) {
-            System.out.println("You can't transfer money to the same account!");
-        } else {
-            /*
-            If the source Account has enough money, do transfer.
-             */
-            if ((sourceAccount.getBalance() - transferAmount) > 0) {
-                subtractIncome(sourceAccount, transferAmount);
-                addIncome(targetAccount, transferAmount);
-                System.out.println("Success!");
-            } else {
-                System.out.println("Not enough money!");
-            }
+        TransferService.Result result;
+        try {
+            result = transfer(sourceAccount, targetAccount, transferAmount);
+        } catch (IllegalArgumentException e) {   // A limit or a bad amount.
+            console.println(e.getMessage() + "!");
+            return;
+        }
+        switch (result) {
+            case SAME_ACCOUNT:
+                console.println("You can't transfer money to the same account!");
+                break;
+            case INSUFFICIENT_FUNDS:
+                console.println("Not enough money!");
+                break;
+            case SUCCESS:
+                console.println("Success!");
+                break;
         }
     }
 
     /**
-     * Creates a table of card accounts if one does not already exist.
-     * @param data the connection to the database where the table is created.
+     * Moves an amount from a source Account to a target Account if the source Account has enough money.
+     * @param sourceAccount the Account to subtract funds from.
+     * @param targetAccount the Account to add funds to.
+     * @param amount the amount to move, in cents.
+     * @return the outcome of the transfer.
+     * @throws VelocityLimitException if the transfer would take the source Account over a transfer limit.
+     * @throws IllegalArgumentException if the amount is not positive.
      */
-    private static void createTable(SQLiteDataSource data) {
-        try (Connection con = data.getConnection()) {
-            // Statement creation
-            try (Statement statement = con.createStatement()) {
-                statement.executeUpdate("CREATE TABLE IF NOT EXISTS card(" +
-                        "id INTEGER PRIMARY KEY," +
-                        "number TEXT NOT NULL," +
-                        "pin TEXT," +
-                        "balance INTEGER DEFAULT 0)");
-            } catch (SQLException e) {
-                e.printStackTrace();
+    static TransferService.Result transfer(Account sourceAccount, Account targetAccount, long amount) {
+        long start = System.nanoTime();
+        TransferService.requirePositive(amount);    // Before the limits, so they never count a bad amount.
+        if (transferLimits != null) {
+            try {
+                transferLimits.acquire(sourceAccount.getNumber(), amount);
+            } catch (VelocityLimitException e) {
+                LIMITED_TRANSFERS.increment();
+                throw e;
             }
-        } catch (SQLException e) {
-            e.printStackTrace();
         }
+        TransferService.Result result = transferService.transfer(sourceAccount, targetAccount, amount);
+        if (result != TransferService.Result.SUCCESS && transferLimits != null) {
+            transferLimits.release(sourceAccount.getNumber(), amount);  // Only transfers that happened count.
+        }
+        TRANSFER_LATENCY.record(System.nanoTime() - start);
+
+        switch (result) {
+            case SUCCESS:
+                TRANSFERS.increment();
+                if (history != null) {
+                    history.recordTransfer(sourceAccount.getNumber(), targetAccount.getNumber(), amount);
+                }
+                break;
+            case SAME_ACCOUNT:
+                SAME_ACCOUNT_TRANSFERS.increment();
+                break;
+            case INSUFFICIENT_FUNDS:
+                INSUFFICIENT_FUNDS.increment();
+                break;
+        }
+        return result;
     }
 
     /**
-     * Deletes an account from the database and removes it from the list of accounts.
+     * Deletes an account from the database and removes it from the store of accounts.
      * @param account the account to be closed.
-     * @param accounts the list of accounts the account will be removed from.
-     * @param data the connection to the database.
+     * @param accounts the store of accounts the account will be removed from.
+     * @param repository the database.
      */
-    private static void closeAccount(Account account, ArrayList<Account> accounts, SQLiteDataSource data) {
-        boolean accountRemoved = accounts.removeIf(acc -> account.getNumber().equals(acc.getNumber()));
+    private static void closeAccount(Account account, AccountStore accounts, AccountRepository repository) {
+        if (removeAccount(account, accounts, repository)) {
+            console.println("The account has been closed.");
 
-        if (account.isInDatabase()) {
-            try (Connection con = data.getConnection()) {
-                try (Statement statement = con.createStatement()) {
-                    statement.executeUpdate("DELETE FROM card WHERE number = " + account.getNumber() + ";");
-                } catch (SQLException e) {
-                    e.printStackTrace();
-                }
+        } else {
+            console.println("Unable to close the account.");
+        }
+    }
+
+    /**
+     * Deletes an account from the database and removes it from the store of accounts.
+     * @param account the account to be closed.
+     * @param accounts the store of accounts the account will be removed from.
+     * @param repository the database.
+     * @return true if the account was removed from the store.
+     */
+    static boolean removeAccount(Account account, AccountStore accounts, AccountRepository repository) {
+        boolean accountRemoved = accounts.remove(account.getNumber());
+        dirtyAccounts.forget(account); // A closed account must not be written back at the next flush.
+        authenticator.forget(account.getNumber());
+
+        if (journal != null) {
+            journal.logDelete(account.getNumber());
+        }
+
+        if (writer != null) {
+            writer.delete(account.getNumber()); // Also cancels any write still queued for the account.
+        } else if (account.isInDatabase()) {
+            try {
+                repository.delete(account.getNumber());
             } catch (SQLException e) {
                 e.printStackTrace();
             }
         }
-        if (accountRemoved) {
-            System.out.println("The account has been closed.");
-
-        } else {
-            System.out.println("Unable to close the account.");
-        }
+        return accountRemoved;
     }
 
 
     /**
-     * Searches for and retrieves an account in a given list of accounts by credit card number.
+     * Retrieves an account from a given store of accounts by credit card number.
      * @param cardNumber the credit card number to search for.
-     * @param accounts the list of accounts to search.
+     * @param accounts the store of accounts to search.
      * @return the matching account if found, null if not found.
      */
-    private static Account getDestinationAccount(String cardNumber, ArrayList<Account> accounts) {
-        Account foundAccount = null;
-
-        for (Account acc : accounts) {
-            if (acc.getNumber().equals(cardNumber)) {
-                foundAccount = acc;
-                break;
-            }
-        }
-        return foundAccount;
+    private static Account getDestinationAccount(String cardNumber, AccountStore accounts) {
+        return accounts.get(cardNumber);
     }
 
+    /**
+     * Asks for a card number and checks that it passes the Luhn algorithm.
+     * @return the card number entered, or null if it is invalid.
+     */
     private static String validateCard() {
-        Scanner input = new Scanner(System.in);
-
-        System.out.println("Enter card number:");
-        String cardNum = input.next();
-
-        char[] separateString = cardNum.toCharArray(); // separate into array of chars
-
-        /*
-        Stores the entered check sum so it can be compared to the correct check sum.
-         */
-        String checkToVerify = String.valueOf(separateString[separateString.length - 1]); // Strips the last char.
-
-        int[] cardAsIntArray = new int[separateString.length - 1]; // Makes empty int array to hold converted chars from above.
-
-        for (int i = 0; i < separateString.length - 1; i++) {
-            cardAsIntArray[i] = Integer.parseInt(String.valueOf(separateString[i]));
-        }
-
-        // create a temporary Account
-        Account tempAcc = new Account(); // make new account (tempAcc)
-
-        // store temp account's .getCheckSum()
-        String correctCheckSum = tempAcc.getCheckSum(cardAsIntArray);
+        console.prompt("Enter card number:");
+        String cardNum = console.next();
         String finalCardNumber = null;
 
-        if (correctCheckSum.equals(checkToVerify)) {
+        if (cardNum != null && Luhn.isValid(cardNum)) {
             finalCardNumber = cardNum;
         } else {
-            System.out.println("This is an invalid card number. Please try again.");
+            console.println("This is an invalid card number. Please try again.");
         }
 
         return finalCardNumber;
@@ -313,7 +873,7 @@ public class Main {
     Only used for testing
      */
     /*
-     private static void printExistingRecords(ArrayList<Account> existing) {
+     private static void printExistingRecords(AccountStore existing) {
         for (Account acc : existing) {
             System.out.println( acc.toString());
         }
@@ -323,44 +883,95 @@ public class Main {
     /**
      * Adds a given amount to the given Account's balance.
      * @param acc the Account to add funds to.
-     * @param amount the amount to add to the Account.
+     * @param amount the amount to add to the Account, in cents.
+     * @throws VelocityLimitException if the income would take the Account over an income limit.
+     * @throws IllegalArgumentException if the amount is not positive.
      */
-    private static void addIncome(Account acc, double amount) {
-        // connect to database
-        double newBalance = acc.getBalance() + amount;
-        // update the ArrayList record
-        if (acc.isInDatabase()) {
-            acc.setUnsaved(true); // Flag the account as having unsaved changes.
+    static void addIncome(Account acc, long amount) {
+        TransferService.requirePositive(amount);    // Before the limits, so they never count a bad amount.
+        if (incomeLimits != null) {
+            try {
+                incomeLimits.acquire(acc.getNumber(), amount);
+            } catch (VelocityLimitException e) {
+                LIMITED_INCOMES.increment();
+                throw e;
+            }
+        }
+        transferService.deposit(acc, amount);
+        if (history != null) {
+            history.recordIncome(acc.getNumber(), amount);
         }
-        acc.setBalance(newBalance);
     }
 
     /**
-     * Subtracts the given amount from an Account's balance.
-     * @param acc the account to subtract money from
-     * @param amount the amount to subtract from the Account's balance.
+     * Reads a page of the transaction history of a card, newest first.
+     * @param number the card number.
+     * @param after the last entry of the previous page, or null for the first page.
+     * @return up to STATEMENT_PAGE_SIZE entries, or null if the history cannot be read.
      */
-    private static void subtractIncome(Account acc, double amount) {
-        // connect to database
-        double newBalance = acc.getBalance() - amount;
-
-        if (acc.isInDatabase()) {
-            acc.setUnsaved(true); // Flag the account as having unsaved changes.
+    static List<TransactionHistory.Entry> statement(String number, TransactionHistory.Entry after) {
+        if (history == null) {
+            return Collections.emptyList();
         }
+        try {
+            return history.statement(number, after, STATEMENT_PAGE_SIZE);
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
 
-        // update the ArrayList record
-        acc.setBalance(newBalance);
+    /**
+     * Displays the transaction history of an Account a page at a time, newest first.
+     * @param acc the Account to show the history of.
+     */
+    private static void showStatement(Account acc) {
+        TransactionHistory.Entry last = null;
+        do {
+            List<TransactionHistory.Entry> page = statement(acc.getNumber(), last);
+            if (page == null) {
+                console.println("Unable to read the statement.");
+                return;
+            }
+            if (page.isEmpty() && last == null) {
+                console.println("\nNo transactions yet.");
+                return;
+            }
+            console.println();
+            for (TransactionHistory.Entry entry : page) {
+                console.println(STATEMENT_TIME.format(Instant.ofEpochMilli(entry.getTimestamp())) + "  "
+                        + describe(entry) + "  " + Money.format(entry.getAmount()));
+            }
+            if (page.size() < STATEMENT_PAGE_SIZE) {
+                return;
+            }
+            last = page.get(page.size() - 1);
+            console.prompt("");
+            console.prompt("1. Next page");
+            console.prompt("0. Back");
+        } while (NEXT_PAGE.equals(console.next()));
+    }
+
+    /**
+     *
+     * @param entry an entry of a transaction history.
+     * @return a short description of the entry, such as "Transfer to 4000001234567899".
+     */
+    private static String describe(TransactionHistory.Entry entry) {
+        if (entry.getCounterparty() == null) {
+            return "Income";
+        }
+        return (entry.getAmount() < 0 ? "Transfer to " : "Transfer from ") + entry.getCounterparty();
     }
 
     /**
      * Gets an amount from the user.
-     * @return the amount entered by the user.
+     * @return the amount entered by the user, in cents.
      */
-    private static double getAmount() {
-        Scanner input = new Scanner(System.in);
-        double amount = 0;
+    private static long getAmount() {
+        long amount = 0;
         try {
-            amount = input.nextDouble();
+            amount = Money.parse(console.next());
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -368,51 +979,30 @@ public class Main {
     }
 
     /**
-     * Retrieves card Accounts stored in the given database and adds them to the given ArrayList.
-     * @param arrayList the ArrayList where existing records are added.
-     * @param data the connection to the database to retrieve records from.
+     * Retrieves card Accounts stored in the given database and adds them to the given AccountStore.
+     * @param accounts the AccountStore where existing records are added.
+     * @param repository the database to retrieve records from.
      */
-    private static void getExistingAccounts(ArrayList<Account> arrayList, SQLiteDataSource data) {
-        try (Connection con = data.getConnection()) {
-            try (Statement statement = con.createStatement()) {
-                try (ResultSet tableRecords = statement.executeQuery("SELECT * FROM " + "card")) {
-                    while (tableRecords.next()) {
-                        int id = tableRecords.getInt("id");
-                        String number = tableRecords.getString("number");
-                        String pin = tableRecords.getString("pin");
-                        int balance = tableRecords.getInt("balance");
-
-                        Account tempAcc = new Account(number, pin, balance); // make new account (tempAcc)
-                        tempAcc.setInDatabase(true);    // Sets the Account's isInDatabase parameter to TRUE
-                        arrayList.add(tempAcc); // add it to the sessions sessionAccounts.add(tempAcc)
-                    }
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-        } catch (Exception e) {
+    static void getExistingAccounts(AccountStore accounts, AccountRepository repository) {
+        try {
+            repository.loadAll(accounts);
+        } catch (SQLException e) {
             e.printStackTrace();
         }
     }
 
     /**
-     * Updates database with changes to a particular Account.
-     * @param account the Account to update.
-     * @param data the connection to the database.
+     * Looks up a single card Account in the given database by its card number.
+     * @param number the card number to search for.
+     * @param repository the database to retrieve the record from.
+     * @return the matching Account, or null if there is no such card.
      */
-    private static void updateDatabase(Account account, SQLiteDataSource data) {
-        try (Connection con = data.getConnection()) {
-            try (Statement statement = con.createStatement()) {
-                statement.executeUpdate("UPDATE " + "card " +
-                        "SET balance = " + account.getBalance() + " " +
-                        "WHERE number = " + account.getNumber() + ";");
-            } catch (SQLException e) {
-                e.printStackTrace();
-            }
+    private static Account findAccount(String number, AccountRepository repository) {
+        try {
+            return repository.findByNumber(number);
         } catch (SQLException e) {
             e.printStackTrace();
+            return null;
         }
     }
 
@@ -421,76 +1011,159 @@ public class Main {
      * @return the user's menu choice for operation on an account.
      */
     public static String getAccountMenuChoice() {
-        Scanner input = new Scanner(System.in);
-
-        System.out.println();
-        System.out.println("1. Balance");
-        System.out.println("2. Add income");
-        System.out.println("3. Do transfer");
-        System.out.println("4. Close account");
-        System.out.println("5. Log out");
-        System.out.println("0. Exit");
-
-        return input.next();
+        console.prompt("");
+        console.prompt("1. Balance");
+        console.prompt("2. Add income");
+        console.prompt("3. Do transfer");
+        console.prompt("4. Close account");
+        console.prompt("5. Log out");
+        console.prompt("6. Statement");
+        console.prompt("0. Exit");
+
+        String answer = console.next();
+        return answer == null ? EXIT : answer; // Exits at the end of the input.
     }
 
     /**
      * Allows a user to log in to an account if they provide the correct card and PIN number.
-     * @param arr the ArrayList of card Accounts to search.
+     * @param accounts the store of card Accounts to search.
      * @return the matching account or null if no match found.
      */
-    public static Account loginToAccount(ArrayList<Account> arr) {
-        Scanner input = new Scanner(System.in);
-
-        System.out.println("Enter your card number:");
-        String cardNum = input.next();
-        System.out.println("Enter your PIN:");
-        String pinNum  = input.next();
-        Account matchingAccount = null;
+    public static Account loginToAccount(AccountStore accounts) {
+        console.prompt("Enter your card number:");
+        String cardNum = console.next();
+        console.prompt("Enter your PIN:");
+        String pinNum  = console.next();
+        Account matchingAccount = cardNum == null || pinNum == null ? null
+                : findLoginAccount(accounts, cardNum, pinNum);
 
-        /*
-         Checks if the given card and PIN match up to an Account in the list of accounts.
-         */
-        for (Account account : arr) {
-            if (account.getNumber().equals(cardNum) && account.getPin().equals(pinNum)) {
-                matchingAccount = account;
-            }
+        if (matchingAccount == null) {
+            console.println(cardNum != null && isLockedOut(cardNum)
+                    ? "Too many failed attempts. Try again later." : "Wrong card number or PIN!");
         }
+        return matchingAccount;
+    }
 
-        if (matchingAccount == null) {
-            System.out.println("Wrong card number or PIN!");
+    /**
+     * Checks if the given card and PIN match up to an Account in the store of accounts. The PIN is checked against
+     * the card's salted hash, and a card locked out after too many failed logins never matches.
+     * @param accounts the store of card Accounts to search.
+     * @param cardNum the card number entered.
+     * @param pinNum the PIN entered.
+     * @return the matching account or null if no match found.
+     */
+    static Account findLoginAccount(AccountStore accounts, String cardNum, String pinNum) {
+        long start = System.nanoTime();
+        Account matchingAccount = accounts.get(cardNum);
+        if (matchingAccount != null) {
+            switch (authenticator.authenticate(matchingAccount, pinNum)) {
+                case SUCCESS:
+                    break;
+                case LOCKED_OUT:
+                    LOCKED_OUT_LOGINS.increment();
+                    matchingAccount = null;
+                    break;
+                case WRONG_PIN:
+                    matchingAccount = null;
+                    break;
+            }
         }
+        LOGIN_LATENCY.record(System.nanoTime() - start);
+        (matchingAccount == null ? FAILED_LOGINS : LOGINS).increment();
         return matchingAccount;
     }
 
     /**
-     * Creates a new instance of an Account.
-     * @return the new Account.
+     * Checks whether a card is locked out after too many failed logins.
+     * @param cardNum the card number entered.
+     * @return true if logins to the card are refused for now.
+     */
+    static boolean isLockedOut(String cardNum) {
+        return authenticator.isLockedOut(cardNum);
+    }
+
+    /**
+     * Creates a new instance of an Account and adds it to the store.
+     * @param accounts the store of existing accounts, used to make sure the new card number is unique.
+     * @return the new Account, or null if the store has no room for it.
      */
-    public static Account createAccount() {
+    public static Account createAccount(AccountStore accounts) {
         // this function will create a new anonymous Account and add it to the list of account for this session
-        Account tempAcc = new Account();
-        tempAcc.setInDatabase(false); // Flag the new account as not having a place in database yet.
-        System.out.println("Your card has been created");
-        System.out.println("Your card number:");
-        System.out.println(tempAcc.getNumber());
-        System.out.println("Your card PIN:");
-        System.out.println(tempAcc.getPin());
+        Account tempAcc;
+        try {
+            tempAcc = newAccount(accounts);
+        } catch (IllegalStateException e) {   // A mapped store that is full.
+            console.println(e.getMessage() + "!");
+            return null;
+        }
+        console.println("Your card has been created");
+        console.println("Your card number:");
+        console.println(tempAcc.getNumber());
+        console.println("Your card PIN:");
+        console.println(tempAcc.getPin());
         return tempAcc;
     }
 
+    /**
+     * Creates a new Account that is not yet in the database and adds it to the store, recording it in the journal if
+     * there is one. The PIN is hashed straight away, and the store, the journal and the database then only see the
+     * card without its PIN.
+     * @param accounts the store of existing accounts, used to make sure the new card number is unique.
+     * @return the new Account with its PIN, to show to the user once.
+     * @throws IllegalStateException if the store has no room for another card.
+     */
+    static Account newAccount(AccountStore accounts) {
+        Account created;
+        do {
+            created = new Account();
+        } while (accounts.get(created.getNumber()) != null); // Generates another card if the number is taken.
+        Account tempAcc = authenticator.enroll(created.getNumber(), created.getPin())
+                ? new Account(created.getNumber(), null, created.getBalance()) : created;
+        tempAcc.setInDatabase(false); // Flag the new account as not having a place in database yet.
+        accounts.add(tempAcc);
+        tempAcc = accounts.get(tempAcc.getNumber()); // A store may hold its own copy, such as a mapped record.
+        if (writer != null) {
+            writer.create(tempAcc);
+        } else {
+            dirtyAccounts.markCreated(tempAcc);
+        }
+
+        if (journal != null) {
+            journal.logCreate(tempAcc);
+        }
+        return created;
+    }
+
+    /**
+     * Finds the value given for a command line option, such as the file name in "-fileName db.s3db".
+     * @param args the command line arguments.
+     * @param name the name of the option.
+     * @param defaultValue the value to use when the option is not given.
+     * @return the value following the option name, or defaultValue if there is none.
+     */
+    private static String getOption(String[] args, String name, String defaultValue) {
+        for (int i = 0; i < args.length - 1; i++) {
+            if (args[i].equals(name)) {
+                return args[i + 1];
+            }
+        }
+        return defaultValue;
+    }
+
     /**
      * Displays the main menu and stores the user's menu choice.
      * @return the user's menu selection.
      */
     public static String getMainMenuChoice() {
-        Scanner input = new Scanner(System.in);
         String answer;
         do {
-            System.out.println("1. Create an account");
-            System.out.println("2. Log into account");
-            System.out.println("0. Exit");
-            answer = input.next();
+            console.prompt("1. Create an account");
+            console.prompt("2. Log into account");
+            console.prompt("0. Exit");
+            answer = console.next();
+            if (answer == null) {
+                answer = EXIT; // Exits at the end of the input.
+            }
         } while (!answer.equals(CREATE_ACCOUNT) && !answer.equals(LOG_INTO_ACCOUNT) && !answer.equals(EXIT));
 
         return answer;
@@ -0,0 +1,424 @@
+package banking;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * An AccountStore that keeps its Accounts off the heap, in fixed size records of a memory-mapped file.
+ *
+ * The file is itself an open-addressing hash table keyed on the card number packed into a long, using linear
+ * probing. Each 24 byte record holds the balance, the packed card number, the PIN and the flags of one card, with the
+ * balance first so it stays 8 byte aligned and can be updated atomically in place. A removed card leaves a tombstone
+ * rather than shifting later records back, so a record never moves while an Account still refers to it; tombstones
+ * count towards the fixed capacity. Reopening the file maps it again without reading any records, unless tombstones
+ * fill more than a tenth of it: then, before any Account can refer to a record, the live records are put back in
+ * place and the tombstones dropped, so closing and creating cards across runs does not fill the file.
+ *
+ * Accounts returned by the store are views of their record: every read and write of the balance or the flags goes
+ * straight to the file.
+ *
+ * The header records the database generation the file was last in step with and whether it was closed cleanly. The
+ * file is only trusted if both hold: anything that changed the database in between, such as a run without the
+ * store, an import or a journal replay, moves the generation on, and a crash can lose mapped pages that were never
+ * forced to disk.
+ */
+public class MappedAccountStore implements AccountStore, Closeable {
+    private static final int MAGIC = 0x4143544D;    // "ACTM"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int RECORD_SIZE = 24;
+    private static final int MAX_LOAD_PERCENT = 70;
+    private static final int MAX_TOMBSTONE_PERCENT = 10;
+    private static final int MAX_CAPACITY = 1 << 26;    // Keeps the file under the 2 GB limit of one mapping.
+
+    /*
+    Header fields
+     */
+    private static final int MAGIC_OFFSET = 0;
+    private static final int VERSION_OFFSET = 4;
+    private static final int CAPACITY_OFFSET = 8;
+    private static final int SIZE_OFFSET = 12;
+    private static final int USED_OFFSET = 16;      // Records holding a card or a tombstone.
+    private static final int GENERATION_OFFSET = 24;    // The database generation the file is in step with.
+    private static final int CLEAN_OFFSET = 32;     // 1 once closed cleanly, 0 while in use.
+
+    /*
+    Record fields
+     */
+    private static final int BALANCE_OFFSET = 0;
+    private static final int CARD_OFFSET = 8;
+    private static final int PIN_OFFSET = 16;
+    private static final int FLAGS_OFFSET = 18;
+
+    /*
+    Record flags
+     */
+    private static final short OCCUPIED = 1;
+    private static final short REMOVED = 2;
+    private static final short IN_DATABASE = 4;
+    private static final short UNSAVED = 8;
+
+    /**
+     * Gives atomic access to the balances in the mapped file.
+     */
+    private static final VarHandle LONG = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final int mask;
+    private int size;
+    private int used;
+
+    /**
+     * Maps a store file, creating it if it does not exist yet.
+     * @param file the store file.
+     * @param capacity the number of cards a new file should have room for; ignored if the file already exists.
+     * @throws IOException if the file cannot be created or mapped, or is not a store file.
+     */
+    public MappedAccountStore(Path file, int capacity) throws IOException {
+        boolean exists = Files.exists(file) && Files.size(file) > 0;
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+
+        int slots;
+        if (exists) {
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+            if (header.getInt(MAGIC_OFFSET) != MAGIC || header.getInt(VERSION_OFFSET) != VERSION) {
+                channel.close();
+                throw new IOException(file + " is not an account store");
+            }
+            slots = header.getInt(CAPACITY_OFFSET);
+        } else {
+            slots = 16;
+            while ((long) slots * MAX_LOAD_PERCENT / 100 < capacity) {
+                slots <<= 1;
+            }
+            if (slots > MAX_CAPACITY) {
+                channel.close();
+                throw new IOException("An account store cannot hold " + capacity + " cards");
+            }
+        }
+
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) slots * RECORD_SIZE);
+        mask = slots - 1;
+        if (exists) {
+            size = buffer.getInt(SIZE_OFFSET);
+            used = buffer.getInt(USED_OFFSET);
+            if ((long) (used - size) * 100 > (long) slots * MAX_TOMBSTONE_PERCENT
+                    && buffer.getInt(CLEAN_OFFSET) == 1) {
+                compact();  // A file that was not closed cleanly is filled again from the database instead.
+            }
+        } else {
+            buffer.putInt(MAGIC_OFFSET, MAGIC);
+            buffer.putInt(VERSION_OFFSET, VERSION);
+            buffer.putInt(CAPACITY_OFFSET, slots);
+            writeCounts();
+        }
+    }
+
+    /**
+     * Checks whether the file can be trusted to hold what the database holds.
+     * @param generation the database generation before this run moved it on.
+     * @return true if the file was closed cleanly in step with that generation.
+     */
+    public boolean isCurrent(long generation) {
+        return buffer.getInt(CLEAN_OFFSET) == 1 && buffer.getLong(GENERATION_OFFSET) == generation;
+    }
+
+    /**
+     * Stamps the file with the database generation of this run and marks it in use until it is closed, forcing the
+     * header to disk so a crash before the clean close is noticed.
+     * @param generation the database generation of this run.
+     */
+    public void stamp(long generation) {
+        buffer.putLong(GENERATION_OFFSET, generation);
+        buffer.putInt(CLEAN_OFFSET, 0);
+        buffer.force();
+    }
+
+    /**
+     * Removes every card, so the store can be filled from the database again.
+     */
+    public void clear() {
+        for (long position = HEADER_SIZE; position < buffer.capacity(); position += 8) {
+            buffer.putLong((int) position, 0);
+        }
+        size = 0;
+        used = 0;
+        writeCounts();
+    }
+
+    /**
+     * Drops the tombstones by putting every live record back into an emptied file. The file is marked as not closed
+     * cleanly meanwhile, so a crash part way through has it filled again from the database.
+     */
+    private void compact() {
+        buffer.putInt(CLEAN_OFFSET, 0);
+        buffer.force();
+        long[] keys = new long[size];
+        long[] balances = new long[size];
+        short[] pins = new short[size];
+        short[] flags = new short[size];
+        int live = 0;
+        for (int slot = 0; slot <= mask; slot++) {
+            if (isOccupied(slot)) {
+                int record = offset(slot);
+                keys[live] = buffer.getLong(record + CARD_OFFSET);
+                balances[live] = buffer.getLong(record + BALANCE_OFFSET);
+                pins[live] = buffer.getShort(record + PIN_OFFSET);
+                flags[live] = buffer.getShort(record + FLAGS_OFFSET);
+                live++;
+            }
+        }
+        clear();
+        for (int i = 0; i < live; i++) {
+            put(keys[i], pins[i], balances[i], flags[i]);
+        }
+        buffer.force();
+        buffer.putInt(CLEAN_OFFSET, 1);
+        buffer.force();
+    }
+
+    @Override
+    public Account get(String number) {
+        long key = CardNumbers.pack(number);
+        if (key == CardNumbers.INVALID) {
+            return null;
+        }
+        int slot = findSlot(key);
+        return isOccupied(slot) ? new MappedAccount(this, slot, number) : null;
+    }
+
+    @Override
+    public void add(Account account) {
+        if (account instanceof MappedAccount && ((MappedAccount) account).store == this) {
+            return;     // Already a view of one of this store's records.
+        }
+        long key = CardNumbers.pack(account.getNumber());
+        if (key == CardNumbers.INVALID) {
+            throw new IllegalArgumentException("Not a valid card number: " + account.getNumber());
+        }
+        short flags = OCCUPIED;
+        if (account.isInDatabase()) {
+            flags |= IN_DATABASE;
+        }
+        if (account.isUnsaved()) {
+            flags |= UNSAVED;
+        }
+        put(key, Account.packPin(account.getPin()), account.getBalance(), flags);
+    }
+
+    /**
+     * Writes the card straight into its record, without creating an Account.
+     */
+    @Override
+    public void addRecord(long card, int pin, long balance) {
+        put(card, (short) pin, balance, (short) (OCCUPIED | IN_DATABASE));
+    }
+
+    @Override
+    public boolean remove(String number) {
+        long key = CardNumbers.pack(number);
+        if (key == CardNumbers.INVALID) {
+            return false;
+        }
+        int slot = findSlot(key);
+        if (!isOccupied(slot)) {
+            return false;
+        }
+        buffer.putShort(offset(slot) + FLAGS_OFFSET, REMOVED);
+        size--;
+        writeCounts();
+        return true;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public Iterator<Account> iterator() {
+        return new Iterator<Account>() {
+            private int slot = advance(0);
+
+            private int advance(int from) {
+                while (from <= mask && !isOccupied(from)) {
+                    from++;
+                }
+                return from;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return slot <= mask;
+            }
+
+            @Override
+            public Account next() {
+                if (slot > mask) {
+                    throw new NoSuchElementException();
+                }
+                Account account = new MappedAccount(MappedAccountStore.this, slot,
+                        CardNumbers.unpack(buffer.getLong(offset(slot) + CARD_OFFSET)));
+                slot = advance(slot + 1);
+                return account;
+            }
+        };
+    }
+
+    /**
+     * Forces the mapped records to disk, then marks the file as closed cleanly, and closes it.
+     * @throws IOException if the file cannot be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        buffer.force();
+        buffer.putInt(CLEAN_OFFSET, 1);     // Only once every record is on disk.
+        buffer.force();
+        channel.close();
+    }
+
+    /**
+     * Finds the record holding the given key, or the empty record where it would be inserted. Tombstones are
+     * probed past, never reused.
+     * @param key the packed card number.
+     * @return the index of the record.
+     */
+    private int findSlot(long key) {
+        int slot = hash(key);
+        while (true) {
+            int record = offset(slot);
+            short flags = buffer.getShort(record + FLAGS_OFFSET);
+            if (flags == 0 || ((flags & OCCUPIED) != 0 && buffer.getLong(record + CARD_OFFSET) == key)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private boolean isOccupied(int slot) {
+        return (buffer.getShort(offset(slot) + FLAGS_OFFSET) & OCCUPIED) != 0;
+    }
+
+    private void put(long key, short pin, long balance, short flags) {
+        int slot = findSlot(key);
+        if (!isOccupied(slot)) {
+            if ((long) (used + 1) * 100 > (long) (mask + 1) * MAX_LOAD_PERCENT) {
+                throw new IllegalStateException("The account store is full");
+            }
+            size++;
+            used++;
+            writeCounts();
+        }
+        int record = offset(slot);
+        buffer.putLong(record + CARD_OFFSET, key);
+        buffer.putShort(record + PIN_OFFSET, pin);
+        LONG.setVolatile(buffer, record + BALANCE_OFFSET, balance);
+        buffer.putShort(record + FLAGS_OFFSET, flags);
+    }
+
+    private int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;  // Fibonacci hashing spreads the sequential card digits.
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    private static int offset(int slot) {
+        return HEADER_SIZE + slot * RECORD_SIZE;
+    }
+
+    private void writeCounts() {
+        buffer.putInt(SIZE_OFFSET, size);
+        buffer.putInt(USED_OFFSET, used);
+    }
+
+    /**
+     * An Account whose balance and flags live in a record of the mapped file. Two views of the same record are
+     * equal.
+     */
+    private static final class MappedAccount extends Account {
+        private final MappedAccountStore store;
+        private final int slot;
+        private final int record;
+
+        MappedAccount(MappedAccountStore store, int slot, String number) {
+            super(number, Account.formatPin(store.buffer.getShort(offset(slot) + PIN_OFFSET)), 0);
+            this.store = store;
+            this.slot = slot;
+            this.record = offset(slot);
+        }
+
+        @Override
+        protected long getStoredBalance() {
+            return (long) LONG.getVolatile(store.buffer, record + BALANCE_OFFSET);
+        }
+
+        @Override
+        public void setBalance(long balance) {
+            LONG.setVolatile(store.buffer, record + BALANCE_OFFSET, balance);
+        }
+
+        @Override
+        public long addToBalance(long amount) {
+            return (long) LONG.getAndAdd(store.buffer, record + BALANCE_OFFSET, amount) + amount;
+        }
+
+        @Override
+        public boolean compareAndSetBalance(long expected, long balance) {
+            return LONG.compareAndSet(store.buffer, record + BALANCE_OFFSET, expected, balance);
+        }
+
+        @Override
+        public boolean isUnsaved() {
+            return hasFlag(UNSAVED);
+        }
+
+        @Override
+        public void setUnsaved(boolean unsaved) {
+            setFlag(UNSAVED, unsaved);
+        }
+
+        @Override
+        public boolean isInDatabase() {
+            return hasFlag(IN_DATABASE);
+        }
+
+        @Override
+        public void setInDatabase(boolean inDatabase) {
+            setFlag(IN_DATABASE, inDatabase);
+        }
+
+        private boolean hasFlag(short flag) {
+            return (store.buffer.getShort(record + FLAGS_OFFSET) & flag) != 0;
+        }
+
+        private void setFlag(short flag, boolean value) {
+            short flags = store.buffer.getShort(record + FLAGS_OFFSET);
+            if ((flags & OCCUPIED) == 0) {
+                return;     // The card was closed, so its record must not come back to life.
+            }
+            store.buffer.putShort(record + FLAGS_OFFSET, (short) (value ? flags | flag : flags & ~flag));
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof MappedAccount && ((MappedAccount) other).store == store
+                    && ((MappedAccount) other).slot == slot;
+        }
+
+        @Override
+        public int hashCode() {
+            return slot;
+        }
+    }
+}
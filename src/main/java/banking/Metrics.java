@@ -0,0 +1,172 @@
+package banking;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * A registry of named counters and latency histograms shared by the whole application.
+ *
+ * Code that wants to be measured looks its counters and histograms up once, keeps them in static fields and updates
+ * them on the hot path; a counter is a LongAdder, so threads updating it do not contend. The registry can be read
+ * over JMX and appended to a file as plain text at a fixed interval.
+ */
+public final class Metrics {
+    private static final String MBEAN_NAME = "banking:type=Metrics";
+
+    private static final Map<String, LongAdder> COUNTERS = new ConcurrentHashMap<>();
+    private static final Map<String, LatencyHistogram> HISTOGRAMS = new ConcurrentHashMap<>();
+
+    private Metrics() {
+    }
+
+    /**
+     * The view of the registry published over JMX. Latencies are in microseconds.
+     */
+    public interface MetricsMXBean {
+        Map<String, Long> getCounters();
+
+        Map<String, Long> getLatencyCounts();
+
+        Map<String, Long> getP50Micros();
+
+        Map<String, Long> getP99Micros();
+
+        Map<String, Long> getMaxMicros();
+
+        String getReport();
+    }
+
+    /**
+     * Finds a counter, creating it the first time it is asked for.
+     * @param name the name of the counter.
+     * @return the counter.
+     */
+    public static LongAdder counter(String name) {
+        return COUNTERS.computeIfAbsent(name, key -> new LongAdder());
+    }
+
+    /**
+     * Finds a latency histogram, creating it the first time it is asked for.
+     * @param name the name of the histogram.
+     * @return the histogram.
+     */
+    public static LatencyHistogram histogram(String name) {
+        return HISTOGRAMS.computeIfAbsent(name, key -> new LatencyHistogram());
+    }
+
+    /**
+     * Publishes the registry to the platform MBean server, unless it is already there.
+     */
+    public static void registerMBean() {
+        try {
+            ObjectName name = new ObjectName(MBEAN_NAME);
+            if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(new MBean(), name);
+            }
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Appends a report of every metric to a file at a fixed interval, from a background thread.
+     * @param file the file to append to.
+     * @param intervalSeconds how often to append a report.
+     */
+    public static void startDump(Path file, long intervalSeconds) {
+        ScheduledExecutorService dumper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics-dump");
+            thread.setDaemon(true);
+            return thread;
+        });
+        dumper.scheduleAtFixedRate(() -> dump(file), intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Appends a report of every metric to a file.
+     * @param file the file to append to.
+     */
+    public static void dump(Path file) {
+        try {
+            Files.write(file, report().getBytes(), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Builds a plain-text report with one line per counter and per histogram, sorted by name.
+     * @return the report.
+     */
+    public static String report() {
+        StringWriter text = new StringWriter();
+        PrintWriter out = new PrintWriter(text);
+        out.println("# " + Instant.now());
+        new TreeMap<>(COUNTERS).forEach((name, counter) -> out.printf("%s %d%n", name, counter.sum()));
+        new TreeMap<>(HISTOGRAMS).forEach((name, histogram) -> out.printf(
+                "%s count=%d p50=%dus p99=%dus max=%dus%n", name, histogram.count(),
+                micros(histogram.percentile(50)), micros(histogram.percentile(99)), micros(histogram.max())));
+        out.flush();
+        return text.toString();
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    private static Map<String, Long> latencies(ToLongFunction<LatencyHistogram> value) {
+        Map<String, Long> values = new TreeMap<>();
+        HISTOGRAMS.forEach((name, histogram) -> values.put(name, value.applyAsLong(histogram)));
+        return values;
+    }
+
+    private static class MBean implements MetricsMXBean {
+        @Override
+        public Map<String, Long> getCounters() {
+            Map<String, Long> values = new TreeMap<>();
+            COUNTERS.forEach((name, counter) -> values.put(name, counter.sum()));
+            return values;
+        }
+
+        @Override
+        public Map<String, Long> getLatencyCounts() {
+            return latencies(LatencyHistogram::count);
+        }
+
+        @Override
+        public Map<String, Long> getP50Micros() {
+            return latencies(histogram -> micros(histogram.percentile(50)));
+        }
+
+        @Override
+        public Map<String, Long> getP99Micros() {
+            return latencies(histogram -> micros(histogram.percentile(99)));
+        }
+
+        @Override
+        public Map<String, Long> getMaxMicros() {
+            return latencies(histogram -> micros(histogram.max()));
+        }
+
+        @Override
+        public String getReport() {
+            return report();
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package banking;
+
+import java.math.BigDecimal;
+
+/**
+ * Converts amounts between their text form and the whole number of minor units (cents) they are held in.
+ */
+public final class Money {
+    /**
+     * Number of decimal places in an amount.
+     */
+    public static final int SCALE = 2;
+
+    private Money() {
+    }
+
+    /**
+     * Parses an amount such as "12", "12.5" or "12.50" into cents.
+     * @param amount the amount to parse.
+     * @return the amount in cents.
+     * @throws NumberFormatException if the text is not a number, has more than two decimal places or is too large.
+     */
+    public static long parse(String amount) {
+        try {
+            return new BigDecimal(amount).movePointRight(SCALE).longValueExact();
+        } catch (ArithmeticException e) {
+            throw new NumberFormatException("Not a valid amount: " + amount);
+        }
+    }
+
+    /**
+     * Formats an amount in cents with two decimal places, such as "12.50".
+     * @param cents the amount in cents.
+     * @return the formatted amount.
+     */
+    public static String format(long cents) {
+        return BigDecimal.valueOf(cents, SCALE).toPlainString();
+    }
+}
@@ -0,0 +1,222 @@
+package banking;
+
+import java.io.Closeable;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes Account changes to the database on a background thread, so callers never wait for the disk.
+ *
+ * Callers enqueue create, update and delete events into a bounded queue and return at once, blocking only while the
+ * queue is full. A single writer thread drains whatever has queued up, folds it into one entry per card so that
+ * repeated balance updates collapse into a single write, and applies the batch in one transaction. Balances are read
+ * from the Account when the batch is written, so the latest balance is always the one stored. A batch that fails is
+ * kept and retried together with the next one. Closing the writer drains everything still queued.
+ */
+public class PersistenceWriter implements Closeable {
+    private static final int MAX_BATCH = 10_000;
+    private static final long RETRY_SECONDS = 1;
+
+    /*
+    Event types
+     */
+    private static final int CREATE = 1;
+    private static final int UPDATE = 2;
+    private static final int DELETE = 3;
+    private static final int STOP = 4;
+
+    private final AccountRepository repository;
+    private final BlockingQueue<Event> queue;
+    private final Thread writer;
+    private volatile boolean closed = false;
+
+    /*
+    Only touched by the writer thread.
+     */
+    private final Map<String, Pending> pending = new LinkedHashMap<>();
+
+    /**
+     * Starts a writer thread for the given database.
+     * @param repository the database to write to.
+     * @param capacity the number of events that can wait in the queue before callers block.
+     */
+    public PersistenceWriter(AccountRepository repository, int capacity) {
+        this.repository = repository;
+        queue = new ArrayBlockingQueue<>(capacity);
+        writer = new Thread(this::writeLoop, "persistence-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Queues a newly created Account to be inserted.
+     * @param account the new Account.
+     */
+    public void create(Account account) {
+        enqueue(new Event(CREATE, account.getNumber(), account));
+    }
+
+    /**
+     * Queues the balance of a changed Account to be written.
+     * @param account the changed Account.
+     */
+    public void update(Account account) {
+        enqueue(new Event(UPDATE, account.getNumber(), account));
+    }
+
+    /**
+     * Queues a closed Account to be deleted.
+     * @param number the card number of the closed Account.
+     */
+    public void delete(String number) {
+        enqueue(new Event(DELETE, number, null));
+    }
+
+    /**
+     * Writes everything still queued, then stops the writer thread.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            queue.put(new Event(STOP, null, null));
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void enqueue(Event event) {
+        if (closed) {
+            throw new IllegalStateException("The persistence writer is closed");
+        }
+        try {
+            queue.put(event);   // Blocks while the queue is full, slowing callers down to the writer's pace.
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while queueing an account change", e);
+        }
+    }
+
+    private void writeLoop() {
+        List<Event> batch = new ArrayList<>();
+        boolean stopping = false;
+        while (true) {
+            try {
+                /*
+                Waits for work, or only for a while when a failed batch is waiting to be retried.
+                 */
+                Event first = pending.isEmpty() ? queue.take() : queue.poll(RETRY_SECONDS, TimeUnit.SECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch, MAX_BATCH - 1);
+                }
+            } catch (InterruptedException e) {
+                stopping = true;
+            }
+
+            for (Event event : batch) {
+                if (event.type == STOP) {
+                    stopping = true;
+                } else {
+                    fold(event);
+                }
+            }
+            batch.clear();
+
+            if (!pending.isEmpty() && !write() && stopping) {
+                System.out.println("Unable to save " + pending.size() + " account changes.");
+                return;
+            }
+            if (stopping && queue.isEmpty()) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Folds an event into the pending entry for its card, later events overriding earlier ones.
+     */
+    private void fold(Event event) {
+        Pending change = pending.computeIfAbsent(event.number, Pending::new);
+        if (event.type == DELETE) {
+            change.entry.recordDelete();
+            change.account = null;
+        } else {
+            if (event.type == CREATE) {
+                change.created = true;
+            }
+            change.account = event.account;
+        }
+    }
+
+    /**
+     * Applies the pending entries in one transaction.
+     * @return true if they were written, false if they are kept for another try.
+     */
+    private boolean write() {
+        List<TransactionJournal.Entry> entries = new ArrayList<>(pending.size());
+        for (Pending change : pending.values()) {
+            if (change.account != null) {
+                if (change.created) {
+                    change.entry.recordCreate(change.account.getPin(), change.account.getBalance());
+                } else {
+                    change.entry.recordBalance(change.account.getBalance());
+                }
+            }
+            entries.add(change.entry);
+        }
+
+        try {
+            repository.applyJournal(entries);
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return false;
+        }
+
+        for (Pending change : pending.values()) {
+            if (change.account != null) {
+                change.account.setInDatabase(true);
+            }
+        }
+        pending.clear();
+        return true;
+    }
+
+    /**
+     * A change queued by a caller.
+     */
+    private static class Event {
+        final int type;
+        final String number;
+        final Account account;
+
+        Event(int type, String number, Account account) {
+            this.type = type;
+            this.number = number;
+            this.account = account;
+        }
+    }
+
+    /**
+     * The folded changes to one card waiting to be written.
+     */
+    private static class Pending {
+        final TransactionJournal.Entry entry;
+        Account account;    // The Account to read the balance from, or null once the card is closed.
+        boolean created = false;
+
+        Pending(String number) {
+            entry = new TransactionJournal.Entry(number);
+        }
+    }
+}
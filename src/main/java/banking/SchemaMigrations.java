@@ -0,0 +1,133 @@
+package banking;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Upgrades the schema of a database file in place to the version this program expects.
+ *
+ * The version of a file is kept in SQLite's PRAGMA user_version. Each migration moves the schema up by one
+ * version and runs in its own transaction together with the version bump, so a file is never left half upgraded
+ * and every migration runs exactly once per file.
+ */
+public final class SchemaMigrations {
+
+    /**
+     * One step of the schema upgrade.
+     */
+    private interface Migration {
+        void apply(Statement statement) throws SQLException;
+    }
+
+    /**
+     * The migrations in order; the migration at index i upgrades a file from version i to version i + 1.
+     */
+    private static final Migration[] MIGRATIONS = {
+            /*
+            Version 1: balances are stored in cents instead of whole units.
+             */
+            statement -> statement.executeUpdate("UPDATE card SET balance = CAST(ROUND(balance * 100) AS INTEGER)"),
+
+            /*
+            Version 2: card numbers are unique and indexed, so lookups, updates and deletes by number are index
+            seeks. Duplicate rows left by older versions are removed first, keeping the most recent one.
+             */
+            statement -> {
+                statement.executeUpdate("DELETE FROM card WHERE id NOT IN (SELECT MAX(id) FROM card GROUP BY number)");
+                statement.executeUpdate("CREATE UNIQUE INDEX IF NOT EXISTS card_number ON card(number)");
+            },
+
+            /*
+            Version 3: salted PIN hashes are kept in their own table, and go away with their card. Existing cards
+            get a hash on their first successful login, since hashing every card here would take hours.
+             */
+            statement -> {
+                statement.executeUpdate("CREATE TABLE IF NOT EXISTS credential(" +
+                        "number TEXT PRIMARY KEY," +
+                        "salt BLOB NOT NULL," +
+                        "hash BLOB NOT NULL," +
+                        "iterations INTEGER NOT NULL)");
+                statement.executeUpdate("CREATE TRIGGER IF NOT EXISTS card_credential AFTER DELETE ON card " +
+                        "BEGIN DELETE FROM credential WHERE number = OLD.number; END");
+            },
+
+            /*
+            Version 4: every income and transfer is kept in an append-only transaction table. The index on
+            (number, ts) also holds the rowid id, so the newest entries of a card are read by a backwards index range
+            scan whatever the size of the table.
+             */
+            statement -> {
+                statement.executeUpdate("CREATE TABLE IF NOT EXISTS \"transaction\"(" +
+                        "id INTEGER PRIMARY KEY," +
+                        "number TEXT NOT NULL," +
+                        "ts INTEGER NOT NULL," +
+                        "amount INTEGER NOT NULL," +
+                        "counterparty TEXT)");
+                statement.executeUpdate("CREATE INDEX IF NOT EXISTS transaction_number_ts " +
+                        "ON \"transaction\"(number, ts)");
+            },
+
+            /*
+            Version 5: a card's plain PIN is cleared as soon as it has a salted hash, so the database never holds the
+            secret beside its hash. Cards hashed before this version lose their plain PIN here.
+             */
+            statement -> {
+                statement.executeUpdate("CREATE TRIGGER IF NOT EXISTS credential_clears_pin " +
+                        "AFTER INSERT ON credential BEGIN UPDATE card SET pin = NULL WHERE number = NEW.number; END");
+                statement.executeUpdate("UPDATE card SET pin = NULL WHERE number IN (SELECT number FROM credential)");
+            },
+
+            /*
+            Version 6: a one-row-per-key meta table. It holds the generation of the database, moved on by every run
+            that opens it, so copies of the cards kept outside the database can tell whether it changed since.
+             */
+            statement -> {
+                statement.executeUpdate("CREATE TABLE IF NOT EXISTS meta(" +
+                        "key TEXT PRIMARY KEY," +
+                        "value INTEGER NOT NULL)");
+                statement.executeUpdate("INSERT OR IGNORE INTO meta (key, value) VALUES ('generation', 0)");
+            },
+    };
+
+    private SchemaMigrations() {
+    }
+
+    /**
+     *
+     * @return the schema version this program expects.
+     */
+    public static int latestVersion() {
+        return MIGRATIONS.length;
+    }
+
+    /**
+     * Runs every migration the database has not had yet.
+     * @param con the connection to the database; it is left in auto-commit mode.
+     * @throws SQLException if a migration fails; the database is left at the last version that fully applied.
+     */
+    public static void migrate(Connection con) throws SQLException {
+        con.setAutoCommit(false);
+        try (Statement statement = con.createStatement()) {
+            for (int version = currentVersion(statement); version < MIGRATIONS.length; version++) {
+                try {
+                    MIGRATIONS[version].apply(statement);
+                    statement.executeUpdate("PRAGMA user_version = " + (version + 1));
+                    con.commit();
+                } catch (SQLException e) {
+                    con.rollback();
+                    throw e;
+                }
+            }
+        } finally {
+            con.setAutoCommit(true);
+        }
+    }
+
+    private static int currentVersion(Statement statement) throws SQLException {
+        try (ResultSet version = statement.executeQuery("PRAGMA user_version")) {
+            return version.next() ? version.getInt(1) : 0;
+        }
+    }
+}
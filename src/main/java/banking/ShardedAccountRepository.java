@@ -0,0 +1,364 @@
+package banking;
+
+import org.sqlite.SQLiteDataSource;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Spreads card Accounts across several SQLite files, each holding the cards whose number hashes to it.
+ *
+ * SQLite lets only one writer at a time into a file, so one file caps the write rate however many threads there
+ * are. Each shard here is a file of its own with its own connection and its own worker thread, so writes to
+ * different shards run in parallel and the write rate grows with the number of shards, and disks. A lookup goes
+ * straight to the shard of its card. Loading, saving, journal checkpoints and imports are split by shard and run on
+ * every shard's thread at once.
+ *
+ * A transfer can change cards on two shards, and a save must not keep one half of it without the other. Writes that
+ * touch several shards therefore use two phases: every shard first runs all of its statements in a transaction it
+ * leaves open, and only if every shard succeeds is each one committed; otherwise every shard rolls back. A failure
+ * while committing, after other shards have committed, still leaves the shards apart; the write-ahead journal, when
+ * turned on, replays the write after a crash. Work spread across the shards is done one piece at a time, since a
+ * shard's thread holds the shard's lock from the first phase to the second.
+ *
+ * A card's shard depends on the number of shards. Each file records its shard index and the number of shards the
+ * first time it is opened, and is refused if it is later opened with different ones, so changing the number of
+ * shards means exporting the cards to a CardArchive, which keeps their PIN hashes, and importing it into new files.
+ */
+public class ShardedAccountRepository implements AccountRepository {
+    private final SqliteAccountRepository[] shards;
+    private final ExecutorService[] workers;
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Opens every shard, creating and upgrading its tables as needed, and checks that each file was written as the
+     * same shard of the same number of shards.
+     * @param data the data source of each shard file, in shard order.
+     * @param loadThreads the number of connections loadAll reads on at once, shared between the shards.
+     * @throws SQLException if a shard cannot be opened or was written as another shard; no shard is left open in
+     * that case.
+     */
+    public ShardedAccountRepository(List<SQLiteDataSource> data, int loadThreads) throws SQLException {
+        shards = new SqliteAccountRepository[data.size()];
+        workers = new ExecutorService[data.size()];
+        try {
+            for (int i = 0; i < shards.length; i++) {
+                shards[i] = new SqliteAccountRepository(data.get(i), Math.max(1, loadThreads / data.size()));
+                shards[i].claimShard(i, shards.length);
+                String name = "shard-" + i;
+                workers[i] = Executors.newSingleThreadExecutor(task -> {
+                    Thread worker = new Thread(task, name);
+                    worker.setDaemon(true);
+                    return worker;
+                });
+            }
+        } catch (SQLException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     *
+     * @param number a card number.
+     * @return the index of the shard holding the card.
+     */
+    public int shardOf(String number) {
+        long card = CardNumbers.pack(number);
+        long h = (card == CardNumbers.INVALID ? number.hashCode() : card) * 0x9E3779B97F4A7C15L;
+        return (int) (((h ^ (h >>> 32)) & 0xFFFFFFFFL) % shards.length);
+    }
+
+    @Override
+    public Account findByNumber(String number) throws SQLException {
+        return shards[shardOf(number)].findByNumber(number);
+    }
+
+    /**
+     * Loads every shard into the store at once. The store is guarded by a lock while the shards fill it.
+     */
+    @Override
+    public void loadAll(AccountStore accounts) throws SQLException {
+        AccountStore shared = new SynchronizedAccountStore(accounts);
+        onEveryShard((shard, i) -> shard.loadAll(shared));
+    }
+
+    /**
+     * Streams every shard in turn, since the sink takes one record at a time.
+     */
+    @Override
+    public void exportAll(RecordSink sink) throws SQLException {
+        for (SqliteAccountRepository shard : shards) {
+            shard.exportAll(sink);
+        }
+    }
+
+    /**
+     * Imports into every shard at once, in two phases. Each shard reads the whole source and keeps its own cards, so
+     * the source must be safe to read from several threads at once.
+     */
+    @Override
+    public void importAll(RecordSource source) throws SQLException, IOException {
+        List<Integer> all = new ArrayList<>(shards.length);
+        for (int i = 0; i < shards.length; i++) {
+            all.add(i);
+        }
+        try {
+            inTwoPhases(all, (shard, i) -> {
+                try {
+                    shard.prepareImport(sink -> source.readInto((number, pin, balance, credential) -> {
+                        if (shardOf(number) == i) {
+                            sink.accept(number, pin, balance, credential);
+                        }
+                    }));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    @Override
+    public void insert(Account account) throws SQLException {
+        shards[shardOf(account.getNumber())].insert(account);
+    }
+
+    @Override
+    public void update(Account account) throws SQLException {
+        shards[shardOf(account.getNumber())].update(account);
+    }
+
+    @Override
+    public void delete(String number) throws SQLException {
+        shards[shardOf(number)].delete(number);
+    }
+
+    @Override
+    public Authenticator.Credential findCredential(String number) throws SQLException {
+        return shards[shardOf(number)].findCredential(number);
+    }
+
+    @Override
+    public void saveCredential(String number, Authenticator.Credential credential) throws SQLException {
+        shards[shardOf(number)].saveCredential(number, credential);
+    }
+
+    /**
+     * Appends each shard's entries on every shard at once. The history of a card lives on the card's shard.
+     */
+    @Override
+    public void appendTransactions(List<TransactionHistory.Entry> entries) throws SQLException {
+        List<List<TransactionHistory.Entry>> split = split(entries, TransactionHistory.Entry::getNumber);
+        onEveryShard((shard, i) -> {
+            if (!split.get(i).isEmpty()) {
+                shard.appendTransactions(split.get(i));
+            }
+        });
+    }
+
+    @Override
+    public List<TransactionHistory.Entry> findTransactions(String number, TransactionHistory.Entry after, int limit)
+            throws SQLException {
+        return shards[shardOf(number)].findTransactions(number, after, limit);
+    }
+
+    /**
+     * Saves each shard's Accounts on every shard at once, in two phases.
+     */
+    @Override
+    public void saveAll(Collection<Account> newAccounts, Collection<Account> changedAccounts) throws SQLException {
+        List<List<Account>> created = split(newAccounts, Account::getNumber);
+        List<List<Account>> changed = split(changedAccounts, Account::getNumber);
+        List<Integer> touched = new ArrayList<>();
+        for (int i = 0; i < shards.length; i++) {
+            if (!created.get(i).isEmpty() || !changed.get(i).isEmpty()) {
+                touched.add(i);
+            }
+        }
+        inTwoPhases(touched, (shard, i) -> shard.prepareSaveAll(created.get(i), changed.get(i)));
+    }
+
+    /**
+     * Applies each shard's entries on every shard at once, in two phases.
+     */
+    @Override
+    public void applyJournal(Collection<TransactionJournal.Entry> entries) throws SQLException {
+        List<List<TransactionJournal.Entry>> split = split(entries, TransactionJournal.Entry::getNumber);
+        List<Integer> touched = new ArrayList<>();
+        for (int i = 0; i < shards.length; i++) {
+            if (!split.get(i).isEmpty()) {
+                touched.add(i);
+            }
+        }
+        inTwoPhases(touched, (shard, i) -> shard.prepareJournal(split.get(i)));
+    }
+
+    /**
+     * Moves every shard on, since a run may change any of them, and gives the generation of the first.
+     */
+    @Override
+    public long advanceGeneration() throws SQLException {
+        long generation = shards[0].advanceGeneration();
+        for (int i = 1; i < shards.length; i++) {
+            shards[i].advanceGeneration();
+        }
+        return generation;
+    }
+
+    /**
+     * Stops the shard threads and closes every shard that was opened.
+     */
+    @Override
+    public void close() {
+        for (int i = 0; i < shards.length; i++) {
+            if (workers[i] != null) {
+                workers[i].shutdown();
+            }
+            if (shards[i] != null) {
+                shards[i].close();
+            }
+        }
+    }
+
+    /**
+     * Work done on one shard, on the shard's thread.
+     */
+    private interface ShardWork {
+        void run(SqliteAccountRepository shard, int index) throws SQLException;
+    }
+
+    /**
+     * Gives the key, a card number, of an item to split by shard.
+     */
+    private interface CardOf<T> {
+        String number(T item);
+    }
+
+    private <T> List<List<T>> split(Collection<T> items, CardOf<T> cardOf) {
+        List<List<T>> split = new ArrayList<>(shards.length);
+        for (int i = 0; i < shards.length; i++) {
+            split.add(new ArrayList<>());
+        }
+        for (T item : items) {
+            split.get(shardOf(cardOf.number(item))).add(item);
+        }
+        return split;
+    }
+
+    /**
+     * Runs work on every shard at once and waits for all of it.
+     * @throws SQLException the first SQLException thrown by any shard, after every shard has finished.
+     */
+    private void onEveryShard(ShardWork work) throws SQLException {
+        lock.lock();
+        try {
+            List<Future<?>> results = new ArrayList<>(shards.length);
+            for (int i = 0; i < shards.length; i++) {
+                results.add(submit(i, work));
+            }
+            Exception failure = null;
+            for (Future<?> result : results) {
+                failure = first(failure, await(result));
+            }
+            rethrow(failure);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Prepares the work on every touched shard at once, then commits every shard if all of them prepared, or rolls
+     * back every shard that did if any failed.
+     */
+    private void inTwoPhases(List<Integer> touched, ShardWork prepare) throws SQLException {
+        lock.lock();
+        try {
+            List<Future<?>> prepared = new ArrayList<>(touched.size());
+            for (int i : touched) {
+                prepared.add(submit(i, prepare));
+            }
+            Exception failure = null;
+            boolean[] ready = new boolean[touched.size()];
+            for (int k = 0; k < touched.size(); k++) {
+                Exception shardFailure = await(prepared.get(k));
+                ready[k] = shardFailure == null;
+                failure = first(failure, shardFailure);
+            }
+
+            boolean commit = failure == null;
+            List<Future<?>> finished = new ArrayList<>(touched.size());
+            for (int k = 0; k < touched.size(); k++) {
+                if (ready[k]) {
+                    finished.add(submit(touched.get(k), commit
+                            ? (shard, i) -> shard.commitPrepared()
+                            : (shard, i) -> shard.rollbackPrepared()));
+                }
+            }
+            for (Future<?> result : finished) {
+                failure = first(failure, await(result));
+            }
+            rethrow(failure);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Future<?> submit(int i, ShardWork work) {
+        return workers[i].submit(() -> {
+            work.run(shards[i], i);
+            return null;
+        });
+    }
+
+    /**
+     * Waits for work on a shard to finish.
+     * @return what the work threw, or null if it succeeded.
+     */
+    private static Exception await(Future<?> result) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    result.get();
+                    return null;
+                } catch (InterruptedException e) {
+                    interrupted = true;  // The shard's transaction must be finished before returning.
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof Exception) {
+                        return (Exception) cause;
+                    }
+                    throw (Error) cause;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static Exception first(Exception failure, Exception next) {
+        return failure != null ? failure : next;
+    }
+
+    private static void rethrow(Exception failure) throws SQLException {
+        if (failure instanceof SQLException) {
+            throw (SQLException) failure;
+        }
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        }
+    }
+}
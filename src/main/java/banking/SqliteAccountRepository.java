@@ -0,0 +1,666 @@
+package banking;
+
+import org.sqlite.SQLiteDataSource;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Reads and writes card Accounts in one SQLite database file.
+ *
+ * The repository keeps one connection open for its whole life and prepares the statement for each operation once,
+ * so an operation only binds its parameters and executes. The database is switched to write-ahead logging with
+ * synchronous=NORMAL, which needs far fewer fsyncs per commit. Each operation holds a lock for its full duration,
+ * so the repository can be shared between threads without their statements or transactions interleaving. The
+ * latency of every operation, including the wait for the lock, and every failed operation are recorded in Metrics.
+ */
+public class SqliteAccountRepository implements AccountRepository {
+    private final SQLiteDataSource data;
+    private final int loadThreads;
+    private final Connection con;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final PreparedStatement findStatement;
+    private final PreparedStatement insertStatement;
+    private final PreparedStatement updateStatement;
+    private final PreparedStatement deleteStatement;
+    private final PreparedStatement findCredentialStatement;
+    private final PreparedStatement saveCredentialStatement;
+    private final PreparedStatement appendTransactionStatement;
+    private final PreparedStatement firstTransactionsStatement;
+    private final PreparedStatement nextTransactionsStatement;
+
+    private static final int IMPORT_BATCH_SIZE = 10_000;
+
+    private static final LatencyHistogram FIND_LATENCY = Metrics.histogram("sql.find");
+    private static final LatencyHistogram LOAD_LATENCY = Metrics.histogram("sql.loadAll");
+    private static final LatencyHistogram INSERT_LATENCY = Metrics.histogram("sql.insert");
+    private static final LatencyHistogram UPDATE_LATENCY = Metrics.histogram("sql.update");
+    private static final LatencyHistogram DELETE_LATENCY = Metrics.histogram("sql.delete");
+    private static final LatencyHistogram SAVE_LATENCY = Metrics.histogram("sql.saveAll");
+    private static final LatencyHistogram APPLY_LATENCY = Metrics.histogram("sql.applyJournal");
+    private static final LatencyHistogram CREDENTIAL_LATENCY = Metrics.histogram("sql.credential");
+    private static final LatencyHistogram APPEND_LATENCY = Metrics.histogram("sql.appendTransactions");
+    private static final LatencyHistogram STATEMENT_LATENCY = Metrics.histogram("sql.findTransactions");
+    private static final LongAdder SQL_ERRORS = Metrics.counter("sql.errors");
+
+    /**
+     * Opens the database, loading it on every available processor.
+     * @param data the data source of the database file.
+     * @throws SQLException if the database cannot be opened or upgraded.
+     */
+    public SqliteAccountRepository(SQLiteDataSource data) throws SQLException {
+        this(data, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Opens the database, creating the card table if needed and bringing its schema up to date.
+     * @param data the data source of the database file.
+     * @param loadThreads the number of connections loadAll reads the card table on at once.
+     * @throws SQLException if the database cannot be opened or upgraded.
+     */
+    public SqliteAccountRepository(SQLiteDataSource data, int loadThreads) throws SQLException {
+        this.data = data;
+        this.loadThreads = loadThreads;
+        con = data.getConnection();
+        try (Statement statement = con.createStatement()) {
+            statement.execute("PRAGMA journal_mode = WAL");
+            statement.execute("PRAGMA synchronous = NORMAL");
+            statement.executeUpdate("CREATE TABLE IF NOT EXISTS card(" +
+                    "id INTEGER PRIMARY KEY," +
+                    "number TEXT NOT NULL," +
+                    "pin TEXT," +
+                    "balance INTEGER DEFAULT 0)");
+        }
+        SchemaMigrations.migrate(con);
+
+        findStatement = con.prepareStatement("SELECT number, pin, balance FROM card WHERE number = ?");
+        insertStatement = con.prepareStatement("INSERT OR IGNORE INTO card (number, pin, balance) VALUES (?, ?, ?)");
+        updateStatement = con.prepareStatement("UPDATE card SET balance = ? WHERE number = ?");
+        deleteStatement = con.prepareStatement("DELETE FROM card WHERE number = ?");
+        findCredentialStatement = con.prepareStatement(
+                "SELECT salt, hash, iterations FROM credential WHERE number = ?");
+        saveCredentialStatement = con.prepareStatement(
+                "INSERT OR REPLACE INTO credential (number, salt, hash, iterations) VALUES (?, ?, ?, ?)");
+        appendTransactionStatement = con.prepareStatement(
+                "INSERT INTO \"transaction\" (number, ts, amount, counterparty) VALUES (?, ?, ?, ?)");
+        firstTransactionsStatement = con.prepareStatement("SELECT id, number, ts, amount, counterparty " +
+                "FROM \"transaction\" WHERE number = ? ORDER BY ts DESC, id DESC LIMIT ?");
+        nextTransactionsStatement = con.prepareStatement("SELECT id, number, ts, amount, counterparty " +
+                "FROM \"transaction\" WHERE number = ? AND ts <= ? AND (ts < ? OR id < ?) " +
+                "ORDER BY ts DESC, id DESC LIMIT ?");   // ts <= ? bounds the index range however deep the page.
+    }
+
+    /**
+     * Looks up a single card Account by its card number.
+     * @param number the card number to search for.
+     * @return the matching Account, flagged as in the database, or null if there is no such card.
+     * @throws SQLException if the lookup fails.
+     */
+    @Override
+    public Account findByNumber(String number) throws SQLException {
+        return timed(FIND_LATENCY, () -> {
+            findStatement.setString(1, number);
+            try (ResultSet record = findStatement.executeQuery()) {
+                return record.next() ? readAccount(record) : null;
+            }
+        });
+    }
+
+    /**
+     * Adds every card Account in the database to the given store. With more than one load thread, the table is read
+     * in ranges on that many connections at once, reporting progress on the standard error stream.
+     * @param accounts the store where existing records are added.
+     * @throws SQLException if the table cannot be read.
+     */
+    @Override
+    public void loadAll(AccountStore accounts) throws SQLException {
+        timed(LOAD_LATENCY, () -> {
+            if (loadThreads > 1) {
+                return new BulkLoader(data, loadThreads, System.err).load(accounts);
+            }
+            try (Statement statement = con.createStatement();
+                 ResultSet tableRecords = statement.executeQuery("SELECT number, pin, balance FROM card")) {
+                while (tableRecords.next()) {
+                    accounts.add(readAccount(tableRecords));
+                }
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Streams every card record, with its PIN hash if it has one, through a cursor, without creating an Account for
+     * each one.
+     * @param sink receives each record in turn.
+     * @throws SQLException if the table cannot be read.
+     */
+    @Override
+    public void exportAll(RecordSink sink) throws SQLException {
+        lock.lock();
+        try (Statement statement = con.createStatement()) {
+            statement.setFetchSize(IMPORT_BATCH_SIZE);
+            try (ResultSet tableRecords = statement.executeQuery("SELECT card.number, pin, balance, " +
+                    "salt, hash, iterations FROM card LEFT JOIN credential ON credential.number = card.number")) {
+                while (tableRecords.next()) {
+                    byte[] salt = tableRecords.getBytes(4);
+                    Authenticator.Credential credential = salt == null ? null
+                            : new Authenticator.Credential(salt, tableRecords.getBytes(5), tableRecords.getInt(6));
+                    sink.accept(tableRecords.getString(1), tableRecords.getString(2), tableRecords.getLong(3),
+                            credential);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Streams card records into the table in batches within one transaction, replacing any card with the same
+     * number and its PIN hash with the record's. A record with neither a PIN nor a PIN hash keeps the hash already
+     * stored, and is refused if there is none. Either every record is imported or, if reading or writing fails, none
+     * of them are.
+     * @param source produces the records to import.
+     * @throws SQLException if the records cannot be written, or a record has no PIN and no PIN hash to keep.
+     * @throws IOException if the records cannot be read.
+     */
+    @Override
+    public void importAll(RecordSource source) throws SQLException, IOException {
+        lock.lock();
+        try {
+            inTransaction(() -> writeImport(source));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Adds an Account to the database, unless its card number is already there.
+     * @param account the Account to add.
+     * @throws SQLException if the insert fails.
+     */
+    @Override
+    public void insert(Account account) throws SQLException {
+        timed(INSERT_LATENCY, () -> {
+            bindInsert(account);
+            return insertStatement.executeUpdate();
+        });
+    }
+
+    /**
+     * Writes the balance of an Account to the database.
+     * @param account the Account to update.
+     * @throws SQLException if the update fails.
+     */
+    @Override
+    public void update(Account account) throws SQLException {
+        timed(UPDATE_LATENCY, () -> {
+            bindUpdate(account.getNumber(), account.getBalance());
+            return updateStatement.executeUpdate();
+        });
+    }
+
+    /**
+     * Deletes a card Account from the database.
+     * @param number the card number of the Account to delete.
+     * @throws SQLException if the delete fails.
+     */
+    @Override
+    public void delete(String number) throws SQLException {
+        timed(DELETE_LATENCY, () -> {
+            deleteStatement.setString(1, number);
+            return deleteStatement.executeUpdate();
+        });
+    }
+
+    /**
+     * Looks up the PIN hash of a card.
+     * @param number the card number.
+     * @return the card's credential, or null if it has none yet.
+     * @throws SQLException if the lookup fails.
+     */
+    @Override
+    public Authenticator.Credential findCredential(String number) throws SQLException {
+        return timed(CREDENTIAL_LATENCY, () -> {
+            findCredentialStatement.setString(1, number);
+            try (ResultSet record = findCredentialStatement.executeQuery()) {
+                return record.next()
+                        ? new Authenticator.Credential(record.getBytes(1), record.getBytes(2), record.getInt(3))
+                        : null;
+            }
+        });
+    }
+
+    /**
+     * Stores the PIN hash of a card, replacing any it had. The card's plain PIN is cleared in the same statement, by a
+     * trigger, so the database never holds both.
+     * @param number the card number.
+     * @param credential the card's credential.
+     * @throws SQLException if the credential cannot be written.
+     */
+    @Override
+    public void saveCredential(String number, Authenticator.Credential credential) throws SQLException {
+        timed(CREDENTIAL_LATENCY, () -> {
+            bindCredential(number, credential);
+            return saveCredentialStatement.executeUpdate();
+        });
+    }
+
+    /**
+     * Appends entries to the transaction history in one batch, in a single transaction.
+     * @param entries the entries to append.
+     * @throws SQLException if the batch fails; nothing is written in that case.
+     */
+    @Override
+    public void appendTransactions(List<TransactionHistory.Entry> entries) throws SQLException {
+        timed(APPEND_LATENCY, () -> {
+            inTransaction(() -> {
+                for (TransactionHistory.Entry entry : entries) {
+                    appendTransactionStatement.setString(1, entry.getNumber());
+                    appendTransactionStatement.setLong(2, entry.getTimestamp());
+                    appendTransactionStatement.setLong(3, entry.getAmount());
+                    appendTransactionStatement.setString(4, entry.getCounterparty());
+                    appendTransactionStatement.addBatch();
+                }
+                appendTransactionStatement.executeBatch();
+            });
+            return null;
+        });
+    }
+
+    /**
+     * Reads a page of the transaction history of a card, newest first. The page starts right after the given entry
+     * in that order, so it is a range scan of the transaction_number_ts index rather than an offset that has to skip
+     * every earlier entry.
+     * @param number the card number.
+     * @param after the last entry of the previous page, or null for the first page.
+     * @param limit the most entries to return.
+     * @return the entries, newest first.
+     * @throws SQLException if the lookup fails.
+     */
+    @Override
+    public List<TransactionHistory.Entry> findTransactions(String number, TransactionHistory.Entry after, int limit)
+            throws SQLException {
+        return timed(STATEMENT_LATENCY, () -> {
+            PreparedStatement find;
+            if (after == null) {
+                find = firstTransactionsStatement;
+                find.setString(1, number);
+                find.setInt(2, limit);
+            } else {
+                find = nextTransactionsStatement;
+                find.setString(1, number);
+                find.setLong(2, after.getTimestamp());
+                find.setLong(3, after.getTimestamp());
+                find.setLong(4, after.getId());
+                find.setInt(5, limit);
+            }
+            List<TransactionHistory.Entry> entries = new ArrayList<>();
+            try (ResultSet record = find.executeQuery()) {
+                while (record.next()) {
+                    entries.add(new TransactionHistory.Entry(record.getLong(1), record.getString(2),
+                            record.getLong(3), record.getLong(4), record.getString(5)));
+                }
+            }
+            return entries;
+        });
+    }
+
+    /**
+     * Inserts new Accounts and updates changed ones in batches, in a single transaction. New Accounts also get
+     * their balance updated, in case a journal checkpoint already inserted them with an older balance.
+     * @param newAccounts the Accounts to insert.
+     * @param changedAccounts the Accounts whose balance to update.
+     * @throws SQLException if the batch fails; nothing is written in that case.
+     */
+    @Override
+    public void saveAll(Collection<Account> newAccounts, Collection<Account> changedAccounts) throws SQLException {
+        timed(SAVE_LATENCY, () -> {
+            inTransaction(() -> writeAll(newAccounts, changedAccounts));
+            return null;
+        });
+    }
+
+    /**
+     * Applies folded entries, from the write-ahead journal or the background writer, in a single transaction.
+     * Every entry holds the final state of a card, so applying the same entries again has no further effect.
+     * @param entries the folded entries.
+     * @throws SQLException if the entries could not be applied; nothing is changed in that case.
+     */
+    @Override
+    public void applyJournal(Collection<TransactionJournal.Entry> entries) throws SQLException {
+        timed(APPLY_LATENCY, () -> {
+            inTransaction(() -> writeJournal(entries));
+            return null;
+        });
+    }
+
+    /*
+    Two-phase writes, used to write a set of shards together. The prepare methods run every statement of a write in
+    a transaction that they leave open, keeping the lock, so a failure on any shard can still be undone everywhere.
+    Once every shard is prepared, each is committed; otherwise each prepared shard is rolled back. The thread that
+    prepared a write must also be the one to commit or roll it back, since it holds the lock.
+     */
+
+    /**
+     * Prepares saveAll, leaving its transaction open.
+     * @param newAccounts the Accounts to insert.
+     * @param changedAccounts the Accounts whose balance to update.
+     * @throws SQLException if the statements fail; the transaction is rolled back in that case.
+     */
+    void prepareSaveAll(Collection<Account> newAccounts, Collection<Account> changedAccounts) throws SQLException {
+        timed(SAVE_LATENCY, () -> {
+            prepare(() -> writeAll(newAccounts, changedAccounts));
+            return null;
+        });
+    }
+
+    /**
+     * Prepares applyJournal, leaving its transaction open.
+     * @param entries the folded entries.
+     * @throws SQLException if the statements fail; the transaction is rolled back in that case.
+     */
+    void prepareJournal(Collection<TransactionJournal.Entry> entries) throws SQLException {
+        timed(APPLY_LATENCY, () -> {
+            prepare(() -> writeJournal(entries));
+            return null;
+        });
+    }
+
+    /**
+     * Prepares importAll, leaving its transaction open.
+     * @param source produces the records to import.
+     * @throws SQLException if the statements fail; the transaction is rolled back in that case.
+     * @throws IOException if the records cannot be read; the transaction is rolled back in that case.
+     */
+    void prepareImport(RecordSource source) throws SQLException, IOException {
+        try {
+            prepare(() -> writeImport(source));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Commits the prepared transaction and releases the lock.
+     * @throws SQLException if the commit fails; the transaction is rolled back in that case.
+     */
+    void commitPrepared() throws SQLException {
+        try {
+            con.commit();
+        } catch (SQLException e) {
+            rollbackPrepared();
+            throw e;
+        }
+        try {
+            con.setAutoCommit(true);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Rolls the prepared transaction back and releases the lock.
+     */
+    void rollbackPrepared() {
+        try {
+            con.rollback();
+            insertStatement.clearBatch();
+            updateStatement.clearBatch();
+            deleteStatement.clearBatch();
+            appendTransactionStatement.clearBatch();
+            con.setAutoCommit(true);
+        } catch (SQLException e) {
+            e.printStackTrace();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long advanceGeneration() throws SQLException {
+        lock.lock();
+        try (Statement statement = con.createStatement()) {
+            statement.executeUpdate("UPDATE meta SET value = value + 1 WHERE key = 'generation'");
+            try (ResultSet generation = statement.executeQuery("SELECT value FROM meta WHERE key = 'generation'")) {
+                return generation.next() ? generation.getLong(1) : 0;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Records in the meta table which shard of how many this file holds, the first time it is opened, and refuses
+     * it after that if it is opened as any other shard, or with another number of shards. A card's shard depends on
+     * the number of shards, so opening the files with another count would hide the cards hashed elsewhere.
+     * @param index the index of this shard, 0 for an unsharded file.
+     * @param count the number of shards, 1 for an unsharded file.
+     * @throws SQLException if the file was written as another shard, or the meta table cannot be used.
+     */
+    public void claimShard(int index, int count) throws SQLException {
+        lock.lock();
+        try (PreparedStatement claim = con.prepareStatement(
+                "INSERT OR IGNORE INTO meta (key, value) VALUES ('shardIndex', ?), ('shardCount', ?)");
+             Statement statement = con.createStatement()) {
+            claim.setInt(1, index);
+            claim.setInt(2, count);
+            claim.executeUpdate();
+            try (ResultSet shard = statement.executeQuery("SELECT " +
+                    "(SELECT value FROM meta WHERE key = 'shardIndex'), " +
+                    "(SELECT value FROM meta WHERE key = 'shardCount')")) {
+                shard.next();
+                if (shard.getInt(1) != index || shard.getInt(2) != count) {
+                    throw new SQLException("The database file holds shard " + shard.getInt(1) + " of "
+                            + shard.getInt(2) + ", not shard " + index + " of " + count
+                            + "; export the cards and import them into new files to change the number of shards");
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Closes the statements and the connection.
+     */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            con.close();    // Also closes the prepared statements.
+        } catch (SQLException e) {
+            e.printStackTrace();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * An operation on the database that produces a result.
+     */
+    private interface Query<T> {
+        T run() throws SQLException;
+    }
+
+    /**
+     * Runs an operation while holding the lock, recording its latency and counting it if it fails.
+     */
+    private <T> T timed(LatencyHistogram latency, Query<T> query) throws SQLException {
+        long start = System.nanoTime();
+        lock.lock();
+        try {
+            return query.run();
+        } catch (SQLException e) {
+            SQL_ERRORS.increment();
+            throw e;
+        } finally {
+            lock.unlock();
+            latency.record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * A unit of work run inside a transaction.
+     */
+    private interface Work {
+        void run() throws SQLException;
+    }
+
+    /**
+     * Runs work in a transaction, committing if it completes and rolling back if it fails.
+     */
+    private void inTransaction(Work work) throws SQLException {
+        prepare(work);
+        commitPrepared();
+    }
+
+    /**
+     * Runs work in a transaction that is left open, with the lock held, or rolls it back if the work fails.
+     */
+    private void prepare(Work work) throws SQLException {
+        lock.lock();
+        try {
+            con.setAutoCommit(false);
+        } catch (SQLException e) {
+            lock.unlock();
+            throw e;
+        }
+        try {
+            work.run();
+        } catch (SQLException | RuntimeException e) {
+            rollbackPrepared();
+            throw e;
+        }
+    }
+
+    private void writeAll(Collection<Account> newAccounts, Collection<Account> changedAccounts)
+            throws SQLException {
+        for (Account account : newAccounts) {
+            bindInsert(account);
+            insertStatement.addBatch();
+            bindUpdate(account.getNumber(), account.getBalance());
+            updateStatement.addBatch();
+        }
+        for (Account account : changedAccounts) {
+            bindUpdate(account.getNumber(), account.getBalance());
+            updateStatement.addBatch();
+        }
+        insertStatement.executeBatch();
+        updateStatement.executeBatch();
+    }
+
+    private void writeJournal(Collection<TransactionJournal.Entry> entries) throws SQLException {
+        for (TransactionJournal.Entry entry : entries) {
+            if (entry.isDeleted()) {
+                deleteStatement.setString(1, entry.getNumber());
+                deleteStatement.addBatch();
+            }
+            if (entry.isCreated()) {
+                insertStatement.setString(1, entry.getNumber());
+                insertStatement.setString(2, entry.getPin());
+                insertStatement.setLong(3, entry.getBalance());
+                insertStatement.addBatch();
+            }
+            if (entry.hasBalance()) {
+                bindUpdate(entry.getNumber(), entry.getBalance());
+                updateStatement.addBatch();
+            }
+        }
+        deleteStatement.executeBatch();
+        insertStatement.executeBatch();
+        updateStatement.executeBatch();
+    }
+
+    /**
+     * Streams the records into the card table in batches, and their PIN hashes into the credential table. An
+     * IOException from the source is rethrown wrapped in an UncheckedIOException, so that it rolls the transaction
+     * back.
+     */
+    private void writeImport(RecordSource source) throws SQLException {
+        try (PreparedStatement replaceStatement = con.prepareStatement(
+                "INSERT OR REPLACE INTO card (number, pin, balance) VALUES (?, ?, ?)");
+             PreparedStatement forgetStatement = con.prepareStatement(
+                     "DELETE FROM credential WHERE number = ?");
+             PreparedStatement hashedStatement = con.prepareStatement(
+                     "SELECT 1 FROM credential WHERE number = ?")) {
+            int[] batched = {0};
+            try {
+                source.readInto((number, pin, balance, credential) -> {
+                    if (pin == null && credential == null) {
+                        hashedStatement.setString(1, number);
+                        try (ResultSet hashed = hashedStatement.executeQuery()) {
+                            if (!hashed.next()) {
+                                throw new SQLException("Card " + number + " has neither a PIN nor a PIN hash");
+                            }
+                        }
+                    }
+                    replaceStatement.setString(1, number);
+                    replaceStatement.setString(2, pin);
+                    replaceStatement.setLong(3, balance);
+                    replaceStatement.addBatch();
+                    if (pin != null) {
+                        forgetStatement.setString(1, number);   // The imported PIN replaces any hashed one.
+                        forgetStatement.addBatch();
+                    }
+                    if (credential != null) {
+                        bindCredential(number, credential);
+                        saveCredentialStatement.addBatch();
+                    }
+                    if (++batched[0] == IMPORT_BATCH_SIZE) {
+                        writeImportBatch(replaceStatement, forgetStatement);
+                        batched[0] = 0;
+                    }
+                });
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            writeImportBatch(replaceStatement, forgetStatement);
+        }
+    }
+
+    /**
+     * Writes a batch of imported records. The cards go first, so each imported hash is written after its card.
+     */
+    private void writeImportBatch(PreparedStatement replaceStatement, PreparedStatement forgetStatement)
+            throws SQLException {
+        replaceStatement.executeBatch();
+        forgetStatement.executeBatch();
+        saveCredentialStatement.executeBatch();
+    }
+
+    private void bindInsert(Account account) throws SQLException {
+        insertStatement.setString(1, account.getNumber());
+        insertStatement.setString(2, account.getPin());
+        insertStatement.setLong(3, account.getBalance());
+    }
+
+    private void bindCredential(String number, Authenticator.Credential credential) throws SQLException {
+        saveCredentialStatement.setString(1, number);
+        saveCredentialStatement.setBytes(2, credential.getSalt());
+        saveCredentialStatement.setBytes(3, credential.getHash());
+        saveCredentialStatement.setInt(4, credential.getIterations());
+    }
+
+    private void bindUpdate(String number, long balance) throws SQLException {
+        updateStatement.setLong(1, balance);
+        updateStatement.setString(2, number);   // Bound as TEXT so the comparison can use the card_number index.
+    }
+
+    private static Account readAccount(ResultSet record) throws SQLException {
+        Account account = new Account(record.getString(1), record.getString(2), record.getLong(3));
+        account.setInDatabase(true);    // Sets the Account's isInDatabase parameter to TRUE
+        return account;
+    }
+}
@@ -0,0 +1,94 @@
+package banking;
+
+import java.util.Iterator;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Makes any AccountStore safe to share between threads by guarding each call with one lock. Every call is a
+ * single hash lookup or update, so the lock is held only briefly. A ReentrantLock is used rather than synchronized
+ * so that virtual threads waiting for it do not pin their carrier thread.
+ */
+public class SynchronizedAccountStore implements AccountStore {
+    private final AccountStore accounts;
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Wraps a store.
+     * @param accounts the store to guard; it must not be used directly afterwards.
+     */
+    public SynchronizedAccountStore(AccountStore accounts) {
+        this.accounts = accounts;
+    }
+
+    @Override
+    public Account get(String number) {
+        lock.lock();
+        try {
+            return accounts.get(number);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void add(Account account) {
+        lock.lock();
+        try {
+            accounts.add(account);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Checks and adds under one hold of the lock, so a card removed by another thread cannot come back in between.
+     */
+    @Override
+    public boolean keepIfPresent(Account account) {
+        lock.lock();
+        try {
+            return accounts.keepIfPresent(account);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void addRecord(long card, int pin, long balance) {
+        lock.lock();
+        try {
+            accounts.addRecord(card, pin, balance);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(String number) {
+        lock.lock();
+        try {
+            return accounts.remove(number);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return accounts.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Iterates over the wrapped store without locking. Only to be used once no other thread is using the store,
+     * such as when saving changes at shutdown.
+     */
+    @Override
+    public Iterator<Account> iterator() {
+        return accounts.iterator();
+    }
+}
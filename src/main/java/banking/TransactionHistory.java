@@ -0,0 +1,250 @@
+package banking;
+
+import java.io.Closeable;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Records every income and transfer of every card, and reads them back a page at a time.
+ *
+ * Recording only appends to a lock-free in-memory queue, so busy cards do not queue on the history; a background
+ * thread appends the queued entries to the transaction table in batches, one database transaction each, at least
+ * once a second or as soon as a batch fills up. Callers wait only if several batches are waiting, which bounds memory
+ * when the database falls behind. Statements are read newest first with
+ * keyset pagination: each page continues from the timestamp and id of the last entry of the page before, so reading
+ * any page of a card's history is a range scan of the (number, ts) index however long the history is.
+ */
+public class TransactionHistory implements Closeable {
+    private static final int BATCH_SIZE = 10_000;
+    private static final int MAX_PENDING = 4 * BATCH_SIZE;
+    private static final long FLUSH_MILLIS = 1000;
+
+    /**
+     * Where the history is kept.
+     */
+    public interface Store {
+        void appendTransactions(List<Entry> entries) throws SQLException;
+
+        List<Entry> findTransactions(String number, Entry after, int limit) throws SQLException;
+    }
+
+    private final Store store;
+    private final ConcurrentLinkedQueue<Entry> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicLong appended = new AtomicLong();   // Number of entries recorded so far.
+    private volatile long written = 0;  // Number of entries written or given up on so far.
+    private volatile boolean closed = false;
+
+    /*
+    Waiting for entries to be written is the slow path, so it uses a lock; recording and writing do not.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition writtenChanged = lock.newCondition();
+    private final Thread flusher;
+
+    /**
+     * Starts recording into the given store.
+     * @param store where the history is kept.
+     */
+    public TransactionHistory(Store store) {
+        this.store = store;
+        flusher = new Thread(this::flushLoop, "history-writer");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Records an income.
+     * @param number the card number that received the income.
+     * @param amount the amount, in cents.
+     */
+    public void recordIncome(String number, long amount) {
+        long now = System.currentTimeMillis();
+        append(new Entry(0, number, now, amount, null));
+    }
+
+    /**
+     * Records a transfer as two entries, one for each card.
+     * @param source the card number the money left.
+     * @param target the card number the money went to.
+     * @param amount the amount, in cents.
+     */
+    public void recordTransfer(String source, String target, long amount) {
+        long now = System.currentTimeMillis();
+        append(new Entry(0, source, now, -amount, target));
+        append(new Entry(0, target, now, amount, source));
+    }
+
+    /**
+     * Reads a page of a card's history, newest first. Everything recorded so far is written first.
+     * @param number the card number.
+     * @param after the last entry of the previous page, or null for the first page.
+     * @param limit the most entries to return.
+     * @return the entries, newest first; fewer than limit only on the last page.
+     * @throws SQLException if the history cannot be read.
+     */
+    public List<Entry> statement(String number, Entry after, int limit) throws SQLException {
+        flush();
+        return store.findTransactions(number, after, limit);
+    }
+
+    /**
+     * Waits until everything recorded so far has been written.
+     */
+    public void flush() {
+        awaitWritten(appended.get());
+    }
+
+    /**
+     * Writes everything recorded so far and stops the background thread.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(flusher);
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void append(Entry entry) {
+        if (closed) {
+            throw new IllegalStateException("The transaction history is closed");
+        }
+        pending.add(entry);
+        long count = appended.incrementAndGet();
+        long waiting = count - written;
+        if (waiting >= MAX_PENDING) {
+            awaitWritten(count - MAX_PENDING);  // Lets the writer catch up.
+        } else if (waiting % BATCH_SIZE == 0) {
+            LockSupport.unpark(flusher);        // A batch is full.
+        }
+    }
+
+    private void flushLoop() {
+        List<Entry> batch = new ArrayList<>(BATCH_SIZE);
+        while (true) {
+            if (pending.isEmpty()) {
+                if (closed) {
+                    return;
+                }
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(FLUSH_MILLIS));
+            }
+            Entry entry;
+            while (batch.size() < BATCH_SIZE && (entry = pending.poll()) != null) {
+                batch.add(entry);
+            }
+            if (batch.isEmpty()) {
+                continue;
+            }
+
+            try {
+                store.appendTransactions(batch);
+            } catch (SQLException e) {
+                e.printStackTrace();    // The history misses this batch; balances are not affected.
+            }
+
+            lock.lock();
+            try {
+                written += batch.size();
+                writtenChanged.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * Waits until at least the given number of entries has been written, waking the writer first.
+     */
+    private void awaitWritten(long target) {
+        lock.lock();
+        try {
+            while (written < target) {
+                LockSupport.unpark(flusher);
+                writtenChanged.await(FLUSH_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the transaction history", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * One change to the balance of a card.
+     */
+    public static class Entry {
+        private final long id;
+        private final String number;
+        private final long timestamp;
+        private final long amount;
+        private final String counterparty;
+
+        /**
+         * Creates an entry.
+         * @param id the id of the entry in the transaction table, or 0 if it has not been written yet.
+         * @param number the card number whose balance changed.
+         * @param timestamp when the change happened, in milliseconds since the epoch.
+         * @param amount the change, in cents; negative for money leaving the card.
+         * @param counterparty the other card of a transfer, or null for an income.
+         */
+        public Entry(long id, String number, long timestamp, long amount, String counterparty) {
+            this.id = id;
+            this.number = number;
+            this.timestamp = timestamp;
+            this.amount = amount;
+            this.counterparty = counterparty;
+        }
+
+        /**
+         *
+         * @return the id of the entry in the transaction table, or 0 if it has not been written yet.
+         */
+        public long getId() {
+            return id;
+        }
+
+        /**
+         *
+         * @return the card number whose balance changed.
+         */
+        public String getNumber() {
+            return number;
+        }
+
+        /**
+         *
+         * @return when the change happened, in milliseconds since the epoch.
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        /**
+         *
+         * @return the change, in cents; negative for money leaving the card.
+         */
+        public long getAmount() {
+            return amount;
+        }
+
+        /**
+         *
+         * @return the other card of a transfer, or null for an income.
+         */
+        public String getCounterparty() {
+            return counterparty;
+        }
+    }
+}
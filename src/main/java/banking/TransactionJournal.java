@@ -0,0 +1,455 @@
+package banking;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only journal of Account changes, written ahead of the database so a crash does not lose a session.
+ *
+ * Each change is a fixed size record holding the new state of one card, so replaying a record twice gives the same
+ * result. Records are appended to the current segment file and forced to disk by a single flusher thread; every
+ * caller waiting while a force is in progress is made durable by the next one (group commit). A background
+ * checkpointer periodically switches to a new segment and folds the closed segments into the card table, and any
+ * segments left behind by a crash are folded in when the journal is opened.
+ */
+public class TransactionJournal implements Closeable {
+    private static final int RECORD_SIZE = 32;
+    private static final int CHECKSUMMED_BYTES = 24;   // Type, PIN, card number and balance.
+    private static final int BUFFER_RECORDS = 4096;
+
+    /*
+    Record types
+     */
+    private static final int CREATE = 1;
+    private static final int BALANCE = 2;
+    private static final int DELETE = 3;
+
+    /**
+     * Applies the folded contents of closed journal segments to the database.
+     */
+    public interface Checkpoint {
+        void apply(Collection<Entry> entries) throws SQLException;
+    }
+
+    private final Path basePath;
+    private final Checkpoint checkpoint;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final Thread flusher;
+    private final ScheduledExecutorService checkpointer;
+
+    private ByteBuffer pending = ByteBuffer.allocate(RECORD_SIZE * BUFFER_RECORDS);
+    private ByteBuffer flushing = ByteBuffer.allocate(RECORD_SIZE * BUFFER_RECORDS);
+    private final CRC32 crc = new CRC32();
+    private FileChannel channel;
+    private long segment;
+    private long appendedSeq = 0;   // Number of records appended so far.
+    private long durableSeq = 0;    // Number of records forced to disk so far.
+    private IOException failure;
+    private boolean closed = false;
+
+    /**
+     * Opens a journal, first folding any segments left over from a previous run into the database.
+     * @param basePath the path of the journal; segment files are named after it with a numeric suffix.
+     * @param checkpoint applies folded journal entries to the database.
+     * @param checkpointSeconds how often closed segments are folded into the database.
+     * @throws IOException if the journal files cannot be read or created.
+     * @throws SQLException if left over segments cannot be applied to the database.
+     */
+    public TransactionJournal(Path basePath, Checkpoint checkpoint, long checkpointSeconds)
+            throws IOException, SQLException {
+        this.basePath = basePath.toAbsolutePath();
+        this.checkpoint = checkpoint;
+
+        List<Long> leftOver = findSegments();
+        foldSegments(leftOver);    // Replays whatever a crashed session did not get into the database.
+        segment = leftOver.isEmpty() ? 0 : leftOver.get(leftOver.size() - 1) + 1;
+        channel = openSegment(segment);
+
+        flusher = new Thread(this::flushLoop, "journal-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+
+        checkpointer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "journal-checkpointer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        checkpointer.scheduleWithFixedDelay(this::runCheckpoint, checkpointSeconds, checkpointSeconds,
+                TimeUnit.SECONDS);
+    }
+
+    /**
+     * Records a newly created Account. Returns once the record is on disk.
+     * @param account the new Account.
+     */
+    public void logCreate(Account account) {
+        append(CREATE, account.getNumber(), Account.packPin(account.getPin()), account.getBalance());
+    }
+
+    /**
+     * Records the current balance of an Account. Returns once the record is on disk.
+     * @param account the Account whose balance changed.
+     */
+    public void logBalance(Account account) {
+        append(BALANCE, account.getNumber(), (short) 0, account.getBalance());
+    }
+
+    /**
+     * Records that an Account was closed. Returns once the record is on disk.
+     * @param number the card number of the closed Account.
+     */
+    public void logDelete(String number) {
+        append(DELETE, number, (short) 0, 0);
+    }
+
+    private void append(int type, String number, short pin, long balance) {
+        long seq;
+        lock.lock();
+        try {
+            checkUsable();
+            while (pending.remaining() < RECORD_SIZE) {
+                awaitFlusher();    // Waits for the flusher to take the full buffer.
+            }
+            int start = pending.position();
+            pending.putInt(type)
+                    .putShort(pin)
+                    .putShort((short) 0)
+                    .putLong(CardNumbers.pack(number))
+                    .putLong(balance);
+            crc.reset();
+            crc.update(pending.array(), start, CHECKSUMMED_BYTES);
+            pending.putInt((int) crc.getValue())
+                    .putInt(0);
+            seq = ++appendedSeq;
+            changed.signalAll();
+
+            while (durableSeq < seq) {
+                checkUsable();
+                awaitFlusher();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes out batches of appended records, forcing each batch to disk with a single call.
+     */
+    private void flushLoop() {
+        while (true) {
+            ByteBuffer batch;
+            long batchSeq;
+            lock.lock();
+            try {
+                while (appendedSeq == durableSeq && !closed) {
+                    awaitFlusher();
+                }
+                if (appendedSeq == durableSeq) {
+                    return;    // Closed with nothing left to write.
+                }
+                batch = pending;
+                pending = flushing;
+                flushing = batch;
+                batchSeq = appendedSeq;
+            } finally {
+                lock.unlock();
+            }
+            try {
+                batch.flip();
+                while (batch.hasRemaining()) {
+                    channel.write(batch);
+                }
+                channel.force(false);
+                batch.clear();
+            } catch (IOException e) {
+                lock.lock();
+                try {
+                    failure = e;
+                    changed.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+                return;
+            }
+            lock.lock();
+            try {
+                durableSeq = batchSeq;
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void runCheckpoint() {
+        try {
+            checkpoint();
+        } catch (Exception e) {
+            e.printStackTrace();    // The segments stay on disk and are folded in by a later checkpoint.
+        }
+    }
+
+    /**
+     * Starts a new segment and folds every closed segment into the database, deleting each one once applied.
+     * @throws IOException if a segment cannot be read or a new one created.
+     * @throws SQLException if the folded entries cannot be applied to the database.
+     */
+    public void checkpoint() throws IOException, SQLException {
+        long current;
+        lock.lock();
+        try {
+            checkUsable();
+            while (durableSeq < appendedSeq) {
+                checkUsable();
+                awaitFlusher();
+            }
+            channel.close();
+            segment++;
+            channel = openSegment(segment);
+            current = segment;
+        } finally {
+            lock.unlock();
+        }
+        List<Long> closedSegments = new ArrayList<>();
+        for (long segmentNumber : findSegments()) {
+            if (segmentNumber < current) {
+                closedSegments.add(segmentNumber);
+            }
+        }
+        foldSegments(closedSegments);
+    }
+
+    /**
+     * Stops the background threads and folds everything left in the journal into the database.
+     * @throws IOException if the journal cannot be written or read back.
+     */
+    @Override
+    public void close() throws IOException {
+        checkpointer.shutdown();
+        try {
+            checkpointer.awaitTermination(1, TimeUnit.MINUTES);
+            lock.lock();
+            try {
+                closed = true;
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while closing the journal", e);
+        }
+        channel.close();
+        if (failure != null) {
+            throw failure;
+        }
+        try {
+            foldSegments(findSegments());
+        } catch (SQLException e) {
+            throw new IOException("Unable to fold the journal into the database", e);
+        }
+    }
+
+    /**
+     * Folds the given segments, oldest first, stopping at the first one that cannot be applied so that an older
+     * segment is never applied after a newer one.
+     */
+    private void foldSegments(List<Long> segments) throws IOException, SQLException {
+        for (long segmentNumber : segments) {
+            Path path = segmentPath(segmentNumber);
+            checkpoint.apply(readSegment(path));
+            Files.delete(path);
+        }
+    }
+
+    /**
+     * Reads a segment file and folds its records into one Entry per card, later records overriding earlier ones.
+     * Stops at the first record with a bad checksum, which can only be a write torn by a crash.
+     */
+    private Collection<Entry> readSegment(Path path) throws IOException {
+        Map<Long, Entry> entries = new LinkedHashMap<>();
+        try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+            byte[] record = new byte[RECORD_SIZE];
+            CRC32 check = new CRC32();
+            while (buffer.remaining() >= RECORD_SIZE) {
+                buffer.get(record);
+                ByteBuffer fields = ByteBuffer.wrap(record);
+                check.reset();
+                check.update(record, 0, CHECKSUMMED_BYTES);
+                if (fields.getInt(CHECKSUMMED_BYTES) != (int) check.getValue()) {
+                    break;
+                }
+                int type = fields.getInt();
+                short pin = fields.getShort();
+                fields.getShort();
+                long card = fields.getLong();
+                long balance = fields.getLong();
+
+                Entry entry = entries.computeIfAbsent(card, key -> new Entry(CardNumbers.unpack(key)));
+                if (type == CREATE) {
+                    entry.recordCreate(Account.formatPin(pin), balance);
+                } else if (type == BALANCE) {
+                    entry.recordBalance(balance);
+                } else if (type == DELETE) {
+                    entry.recordDelete();
+                }
+            }
+        }
+        return entries.values();
+    }
+
+    /**
+     *
+     * @return the numbers of the segment files on disk, in ascending order.
+     */
+    private List<Long> findSegments() throws IOException {
+        List<Long> segments = new ArrayList<>();
+        String prefix = basePath.getFileName().toString() + ".";
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(basePath.getParent(), prefix + "*")) {
+            for (Path file : files) {
+                String suffix = file.getFileName().toString().substring(prefix.length());
+                if (!suffix.isEmpty() && suffix.chars().allMatch(Character::isDigit)) {
+                    segments.add(Long.parseLong(suffix));
+                }
+            }
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+
+    private Path segmentPath(long segmentNumber) {
+        return basePath.resolveSibling(basePath.getFileName().toString() + "." + segmentNumber);
+    }
+
+    private FileChannel openSegment(long segmentNumber) throws IOException {
+        return FileChannel.open(segmentPath(segmentNumber), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+    }
+
+    private void checkUsable() {
+        if (failure != null) {
+            throw new UncheckedIOException("The journal can no longer be written", failure);
+        }
+        if (closed) {
+            throw new IllegalStateException("The journal is closed");
+        }
+    }
+
+    /**
+     * Waits for the journal state to change; must be called while holding the lock.
+     */
+    private void awaitFlusher() {
+        try {
+            changed.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the journal", e);
+        }
+    }
+
+    /**
+     * The folded state of one card after replaying a run of changes, such as a journal segment.
+     */
+    public static class Entry {
+        private final String number;
+        private String pin;
+        private long balance;
+        private boolean created = false;
+        private boolean deleted = false;
+        private boolean hasBalance = false;
+
+        Entry(String number) {
+            this.number = number;
+        }
+
+        void recordCreate(String pin, long balance) {
+            created = true;
+            this.pin = pin;
+            this.balance = balance;
+            hasBalance = true;
+        }
+
+        void recordBalance(long balance) {
+            this.balance = balance;
+            hasBalance = true;
+        }
+
+        void recordDelete() {
+            deleted = true;
+            created = false;
+            hasBalance = false;
+        }
+
+        /**
+         *
+         * @return the card number the entry is for.
+         */
+        public String getNumber() {
+            return number;
+        }
+
+        /**
+         *
+         * @return the PIN of a created card, or null if the card was not created in this segment.
+         */
+        public String getPin() {
+            return pin;
+        }
+
+        /**
+         *
+         * @return the last balance recorded for the card, in cents.
+         */
+        public long getBalance() {
+            return balance;
+        }
+
+        /**
+         *
+         * @return true if the card was created and is still open at the end of the segment.
+         */
+        public boolean isCreated() {
+            return created;
+        }
+
+        /**
+         *
+         * @return true if the card was closed at some point in the segment, so any older row must be deleted first.
+         */
+        public boolean isDeleted() {
+            return deleted;
+        }
+
+        /**
+         *
+         * @return true if the card has a balance to write at the end of the segment.
+         */
+        public boolean hasBalance() {
+            return hasBalance;
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package banking;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Changes Account balances safely from any number of threads.
+ *
+ * Every Account is guarded by one of a fixed set of locks chosen by its card number (lock striping), so there is
+ * no global lock and transfers between unrelated accounts run in parallel. A transfer takes the locks of both
+ * accounts in ascending stripe order, which rules out deadlocks between transfers going in opposite directions.
+ *
+ * Credits to a hot account, one flagged in HotAccounts, take no lock at all: they are added to the account's striped
+ * credit cells, and a transfer to a hot account only locks the source. A reader may then briefly see the source
+ * debited before the hot account's credit lands. A listener that needs every change in order, such as one that
+ * journals whole balances, can have hot credits folded and reported under the account's lock instead.
+ */
+public class TransferService {
+    private static final int DEFAULT_STRIPES = 1024;
+
+    /**
+     * The outcome of a transfer.
+     */
+    public enum Result {
+        SUCCESS,
+        SAME_ACCOUNT,
+        INSUFFICIENT_FUNDS
+    }
+
+    private final ReentrantLock[] stripes;
+    private final Consumer<Account> changeListener;
+    private volatile boolean orderedCredits = false;
+
+    /**
+     * Creates a service with the default number of lock stripes.
+     * @param changeListener called with each Account whose balance changed, while its lock is still held; a hot
+     *                       Account is credited without taking its lock.
+     */
+    public TransferService(Consumer<Account> changeListener) {
+        this(DEFAULT_STRIPES, changeListener);
+    }
+
+    /**
+     * Creates a service.
+     * @param stripeCount the number of locks to spread Accounts over; rounded up to a power of two.
+     * @param changeListener called with each Account whose balance changed, while its lock is still held; a hot
+     *                       Account is credited without taking its lock.
+     */
+    public TransferService(int stripeCount, Consumer<Account> changeListener) {
+        int size = Integer.highestOneBit(Math.max(1, stripeCount - 1)) << 1;
+        this.stripes = new ReentrantLock[size];
+        for (int i = 0; i < size; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+        this.changeListener = changeListener;
+    }
+
+    /**
+     * Makes credits to hot Accounts take the Account's lock like any other change, folding the credits held apart
+     * into the stored balance, so the listener sees each Account's balances in the order they were reached.
+     * @param ordered true to report hot credits in order.
+     */
+    public void setOrderedCredits(boolean ordered) {
+        this.orderedCredits = ordered;
+    }
+
+    /**
+     * Adds an amount to an Account's balance.
+     * @param account the Account to add funds to.
+     * @param amount the amount to add, in cents.
+     * @throws IllegalArgumentException if the amount is not positive.
+     */
+    public void deposit(Account account, long amount) {
+        requirePositive(amount);
+        LongAdder credits = orderedCredits ? null : HotAccounts.creditsOf(account.getNumber());
+        if (credits != null) {
+            credit(account, credits, amount);
+            return;
+        }
+        ReentrantLock lock = stripes[stripeOf(account)];
+        lock.lock();
+        try {
+            changeBalance(account, amount);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Moves an amount from a source Account to a target Account if the source Account has enough money. Both
+     * balances change together; no other thread can see one changed without the other.
+     * @param source the Account to subtract funds from.
+     * @param target the Account to add funds to.
+     * @param amount the amount to move, in cents.
+     * @return the outcome of the transfer.
+     * @throws IllegalArgumentException if the amount is not positive, which would move money the other way.
+     */
+    public Result transfer(Account source, Account target, long amount) {
+        requirePositive(amount);
+        if (source.getNumber().equals(target.getNumber())) {
+            return Result.SAME_ACCOUNT;
+        }
+        LongAdder targetCredits = orderedCredits ? null : HotAccounts.creditsOf(target.getNumber());
+        if (targetCredits != null) {
+            return transferToHot(source, target, targetCredits, amount);
+        }
+        int sourceStripe = stripeOf(source);
+        int targetStripe = stripeOf(target);
+        ReentrantLock first = stripes[Math.min(sourceStripe, targetStripe)];
+        ReentrantLock second = stripes[Math.max(sourceStripe, targetStripe)];
+
+        first.lock();
+        try {
+            second.lock();  // Reentrant, so sharing a stripe with the first lock is harmless.
+            try {
+                /*
+                If the source Account has enough money, do transfer.
+                 */
+                if ((source.getBalance() - amount) > 0) {
+                    changeBalance(source, -amount);
+                    changeBalance(target, amount);
+                    return Result.SUCCESS;
+                }
+                return Result.INSUFFICIENT_FUNDS;
+            } finally {
+                second.unlock();
+            }
+        } finally {
+            first.unlock();
+        }
+    }
+
+    /**
+     * Folds the credits held apart for a hot Account into its stored balance, such as before it is flushed.
+     * @param account the Account to fold; nothing happens if it is not hot.
+     */
+    public void fold(Account account) {
+        if (HotAccounts.creditsOf(account.getNumber()) == null) {
+            return;
+        }
+        ReentrantLock lock = stripes[stripeOf(account)];
+        lock.lock();
+        try {
+            HotAccounts.fold(account);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Moves an amount to a hot Account, locking only the source.
+     */
+    private Result transferToHot(Account source, Account target, LongAdder targetCredits, long amount) {
+        ReentrantLock lock = stripes[stripeOf(source)];
+        lock.lock();
+        try {
+            if ((source.getBalance() - amount) > 0) {
+                changeBalance(source, -amount);
+                credit(target, targetCredits, amount);
+                return Result.SUCCESS;
+            }
+            return Result.INSUFFICIENT_FUNDS;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Adds an amount to the balance and flags the Account as changed. Must be called while holding the Account's
+     * lock. A hot Account has its credits folded in first, so a debit comes out of its stored balance.
+     */
+    private void changeBalance(Account account, long amount) {
+        if (account.isInDatabase()) {
+            account.setUnsaved(true); // Flag the account as having unsaved changes.
+        }
+        HotAccounts.fold(account);
+        account.addToBalance(amount);
+        changeListener.accept(account);
+    }
+
+    /**
+     * Adds an amount to the credit cells of a hot Account and flags it as changed, without taking its lock.
+     */
+    private void credit(Account account, LongAdder credits, long amount) {
+        if (account.isInDatabase() && !account.isUnsaved()) {
+            account.setUnsaved(true); // Written only once per flush, so the flag's cache line stays shared.
+        }
+        credits.add(amount);
+        changeListener.accept(account);
+    }
+
+    /**
+     * Checks that an amount can be deposited or transferred.
+     * @param amount the amount, in cents.
+     * @throws IllegalArgumentException if the amount is not positive.
+     */
+    static void requirePositive(long amount) {
+        if (amount <= 0) {
+            throw new IllegalArgumentException("The amount must be more than zero");
+        }
+    }
+
+    private int stripeOf(Account account) {
+        long h = CardNumbers.pack(account.getNumber()) * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & (stripes.length - 1);
+    }
+}
@@ -0,0 +1,16 @@
+package banking;
+
+/**
+ * Thrown when an operation would take a card over one of its velocity limits. The message says which limit.
+ */
+public class VelocityLimitException extends IllegalArgumentException {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Creates the exception.
+     * @param message the limit that was reached, such as "Limit reached: no more than 10 transfers per minute".
+     */
+    public VelocityLimitException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,324 @@
+package banking;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits how many operations, and how much money, a card may move within the last minute and the last hour.
+ *
+ * Each card has a ring of time buckets per window, twelve buckets of five seconds for the minute and twelve of five
+ * minutes for the hour, together with the running totals of the ring. Moving a window forward only clears the
+ * buckets that fell out of it and takes them off the totals, so checking a limit is a constant number of steps
+ * however busy the card is. A window therefore covers between eleven and twelve buckets of the past, depending on
+ * how far into the current bucket the operation happens.
+ *
+ * The counters live in a primitive open-addressing map of packed card numbers, split into segments with a lock each,
+ * so operations on different cards rarely wait for each other and no object is created per card or per operation.
+ * The map's slots only point into a packed array of records, which holds no more than the rules need.
+ * Cards with no activity in the last hour are dropped when their segment needs room.
+ */
+public class VelocityLimiter {
+    private static final int SEGMENTS = 16;
+    private static final int INITIAL_CAPACITY = 64;
+    private static final int MAX_LOAD_PERCENT = 50;
+    private static final int BUCKETS = 12;
+    private static final long EMPTY = 0;    // Packed card numbers are never 0, since every card starts with the IIN.
+
+    /**
+     * The windows limits apply over.
+     */
+    private enum Window {
+        MINUTE("minute", 60_000),
+        HOUR("hour", 3_600_000);
+
+        private final String name;
+        private final long bucketMillis;
+
+        Window(String name, long millis) {
+            this.name = name;
+            this.bucketMillis = millis / BUCKETS;
+        }
+    }
+
+    /*
+    Layout of a card's record: the time of its last operation, then for each window with rules the number of its
+    newest bucket, the running total of each of its rules, and a ring of buckets holding a value per rule.
+     */
+    private static final int LAST_SEEN = 0;
+    private static final int NEWEST = 0;
+
+    private final String operations;
+    private final Window[] ruleWindows;
+    private final boolean[] ruleAmounts;     // Whether a rule limits the amount moved rather than the count.
+    private final long[] ruleLimits;
+    private final int[] ruleSlots;           // The index of a rule among the rules of its window.
+    private final int[] windowOffsets = new int[Window.values().length];  // -1 when a window has no rules.
+    private final int[] windowRules = new int[Window.values().length];
+    private final int stride;
+    private final Segment[] segments = new Segment[SEGMENTS];
+
+    /**
+     * Creates a limiter from a list of rules such as "count/minute=10,amount/hour=5000.00". Only the windows and
+     * measures that have rules are tracked, so a card's record is no larger than the rules need.
+     * @param operations what the limited operations are called in messages, such as "transfers".
+     * @param rules comma separated rules, each a measure (count or amount), a window (minute or hour) and a limit.
+     * @throws IllegalArgumentException if a rule cannot be read.
+     */
+    public VelocityLimiter(String operations, String rules) {
+        this.operations = operations;
+        long[] limits = new long[Window.values().length * 2];   // By window, then count or amount; -1 for none.
+        Arrays.fill(limits, -1);
+        for (String rule : rules.split(",")) {
+            int slash = rule.indexOf('/');
+            int equals = rule.indexOf('=');
+            if (slash < 0 || equals < slash) {
+                throw new IllegalArgumentException("Not a valid limit: " + rule);
+            }
+            String measure = rule.substring(0, slash).trim();
+            Window window = Window.valueOf(rule.substring(slash + 1, equals).trim().toUpperCase());
+            String limit = rule.substring(equals + 1).trim();
+            if (measure.equals("count")) {
+                limits[window.ordinal() * 2] = Long.parseLong(limit);
+            } else if (measure.equals("amount")) {
+                limits[window.ordinal() * 2 + 1] = Money.parse(limit);
+            } else {
+                throw new IllegalArgumentException("Not a valid limit: " + rule);
+            }
+            if (limits[window.ordinal() * 2] < -1 || limits[window.ordinal() * 2 + 1] < -1) {
+                throw new IllegalArgumentException("Not a valid limit: " + rule);
+            }
+        }
+
+        int count = 0;
+        for (long limit : limits) {
+            count += limit >= 0 ? 1 : 0;
+        }
+        ruleWindows = new Window[count];
+        ruleAmounts = new boolean[count];
+        ruleLimits = new long[count];
+        ruleSlots = new int[count];
+        int r = 0;
+        int offset = 1;
+        for (Window window : Window.values()) {
+            int w = window.ordinal();
+            for (int measure = 0; measure < 2; measure++) {
+                if (limits[w * 2 + measure] >= 0) {
+                    ruleWindows[r] = window;
+                    ruleAmounts[r] = measure == 1;
+                    ruleLimits[r] = limits[w * 2 + measure];
+                    ruleSlots[r] = windowRules[w]++;
+                    r++;
+                }
+            }
+            windowOffsets[w] = windowRules[w] == 0 ? -1 : offset;
+            offset += windowRules[w] == 0 ? 0 : 1 + windowRules[w] * (1 + BUCKETS);
+        }
+        stride = offset;
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    /**
+     * Records an operation if it keeps the card within every limit.
+     * @param number the card number.
+     * @param amount the amount moved, in cents.
+     * @throws VelocityLimitException if the operation would take the card over a limit; nothing is recorded then.
+     */
+    public void acquire(String number, long amount) {
+        long card = CardNumbers.pack(number);
+        if (card == CardNumbers.INVALID) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        Segment segment = segmentOf(card);
+        String broken;
+        segment.lock.lock();
+        try {
+            broken = segment.acquire(card, amount, now);
+        } finally {
+            segment.lock.unlock();
+        }
+        if (broken != null) {
+            throw new VelocityLimitException("Limit reached: no more than " + broken);
+        }
+    }
+
+    /**
+     * Takes back an operation recorded by acquire, such as a transfer that then failed.
+     * @param number the card number.
+     * @param amount the amount that was acquired, in cents.
+     */
+    public void release(String number, long amount) {
+        long card = CardNumbers.pack(number);
+        if (card == CardNumbers.INVALID) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        Segment segment = segmentOf(card);
+        segment.lock.lock();
+        try {
+            segment.release(card, amount, now);
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    private static int maxRecords(int capacity) {
+        return (int) ((long) capacity * MAX_LOAD_PERCENT / 100);
+    }
+
+    private Segment segmentOf(long card) {
+        return segments[(int) (spread(card) >>> 60) & (SEGMENTS - 1)];
+    }
+
+    private static long spread(long card) {
+        return card * 0x9E3779B97F4A7C15L;  // Fibonacci hashing spreads the sequential card digits.
+    }
+
+    /**
+     * A part of the map with its own lock. Every method must be called while holding the lock.
+     */
+    private class Segment {
+        private final ReentrantLock lock = new ReentrantLock();
+        private long[] keys = new long[INITIAL_CAPACITY];
+        private int[] indexes = new int[INITIAL_CAPACITY];  // The record of the card in each slot.
+        private long[] records = new long[maxRecords(INITIAL_CAPACITY) * stride];  // Packed, in the order added.
+        private int size = 0;
+
+        /**
+         * @return a description of the limit the operation would break, or null if it was recorded.
+         */
+        String acquire(long card, long amount, long now) {
+            int slot = find(card);
+            if (keys[slot] != card) {
+                if (size == maxRecords(keys.length)) {
+                    rebuild(now);
+                    slot = find(card);
+                }
+                keys[slot] = card;
+                indexes[slot] = size++;     // Records past the last one are still zero.
+            }
+            int record = indexes[slot] * stride;
+            advance(record, now);
+            for (int r = 0; r < ruleLimits.length; r++) {
+                long value = ruleAmounts[r] ? amount : 1;
+                if (records[total(record, r)] + value > ruleLimits[r]) {
+                    String limit = ruleAmounts[r] ? Money.format(ruleLimits[r]) + " in" : String.valueOf(ruleLimits[r]);
+                    return limit + " " + operations + " per " + ruleWindows[r].name;
+                }
+            }
+            for (int r = 0; r < ruleLimits.length; r++) {
+                add(record, r, ruleAmounts[r] ? amount : 1);
+            }
+            records[record + LAST_SEEN] = now;
+            return null;
+        }
+
+        void release(long card, long amount, long now) {
+            int slot = find(card);
+            if (keys[slot] != card) {
+                return;     // Evicted in the meantime.
+            }
+            int record = indexes[slot] * stride;
+            advance(record, now);
+            for (int r = 0; r < ruleLimits.length; r++) {
+                add(record, r, -(ruleAmounts[r] ? amount : 1));
+            }
+        }
+
+        /**
+         * Moves every window of a record forward to the current time, clearing the buckets that fell out of it.
+         */
+        private void advance(int record, long now) {
+            for (Window window : Window.values()) {
+                int w = window.ordinal();
+                if (windowOffsets[w] < 0) {
+                    continue;
+                }
+                int base = record + windowOffsets[w];
+                int rules = windowRules[w];
+                long current = now / window.bucketMillis;
+                long newest = records[base + NEWEST];
+                if (current <= newest) {
+                    continue;
+                }
+                long steps = Math.min(current - newest, BUCKETS);
+                for (long step = 1; step <= steps; step++) {
+                    int bucket = base + 1 + rules * (1 + (int) ((newest + step) % BUCKETS));
+                    for (int k = 0; k < rules; k++) {
+                        records[base + 1 + k] -= records[bucket + k];
+                        records[bucket + k] = 0;
+                    }
+                }
+                records[base + NEWEST] = current;
+            }
+        }
+
+        /**
+         * @return the index in the records of the running total of a rule.
+         */
+        private int total(int record, int r) {
+            return record + windowOffsets[ruleWindows[r].ordinal()] + 1 + ruleSlots[r];
+        }
+
+        /**
+         * Adds to the newest bucket of a rule, never taking the bucket below zero.
+         */
+        private void add(int record, int r, long value) {
+            int w = ruleWindows[r].ordinal();
+            int base = record + windowOffsets[w];
+            int rules = windowRules[w];
+            int bucket = base + 1 + rules * (1 + (int) (records[base + NEWEST] % BUCKETS)) + ruleSlots[r];
+            value = Math.max(value, -records[bucket]);
+            records[bucket] += value;
+            records[total(record, r)] += value;
+        }
+
+        private int find(long card) {
+            int mask = keys.length - 1;
+            long h = spread(card);
+            int slot = (int) (h ^ (h >>> 32)) & mask;
+            while (keys[slot] != EMPTY && keys[slot] != card) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        /**
+         * Drops the cards idle for longer than the longest window, and doubles the table if it is still over half full.
+         */
+        private void rebuild(long now) {
+            long idleBefore = now - Window.HOUR.bucketMillis * BUCKETS;
+            int live = 0;
+            for (int index = 0; index < size; index++) {
+                if (records[index * stride + LAST_SEEN] >= idleBefore) {
+                    live++;
+                }
+            }
+            int capacity = keys.length;
+            if (live * 2 > maxRecords(capacity)) {    // Leaves room for as many new cards as are live.
+                capacity <<= 1;
+            }
+            long[] newKeys = new long[capacity];
+            int[] newIndexes = new int[capacity];
+            long[] newRecords = new long[maxRecords(capacity) * stride];
+            long[] oldKeys = keys;
+            int[] oldIndexes = indexes;
+            long[] oldRecords = records;
+            keys = newKeys;     // Swapped in only once allocated, so running out of memory leaves the table whole.
+            indexes = newIndexes;
+            records = newRecords;
+            size = 0;
+            for (int slot = 0; slot < oldKeys.length; slot++) {
+                int from = oldIndexes[slot] * stride;
+                if (oldKeys[slot] != EMPTY && oldRecords[from + LAST_SEEN] >= idleBefore) {
+                    int newSlot = find(oldKeys[slot]);
+                    keys[newSlot] = oldKeys[slot];
+                    indexes[newSlot] = size;
+                    System.arraycopy(oldRecords, from, records, size++ * stride, stride);
+                }
+            }
+        }
+    }
+}
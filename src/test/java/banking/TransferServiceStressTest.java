@@ -0,0 +1,123 @@
+package banking;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs transfers from many threads at once and checks that no money is created or lost and that no transfer
+ * deadlocks. The timeouts fail a test that deadlocks instead of letting it hang.
+ */
+public class TransferServiceStressTest {
+    private static final int THREADS = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+    private static final int TRANSFERS_PER_THREAD = 200_000;
+    private static final long INITIAL_BALANCE = 1_000_000;
+
+    private final TransferService transferService = new TransferService(account -> { });
+
+    /**
+     * Half of the threads move money from the first account to the second and half the other way, so every pair of
+     * concurrent transfers takes the same two locks in opposite argument order.
+     */
+    @Test(timeout = 60_000)
+    public void opposingTransfersConserveMoney() throws Exception {
+        Account[] accounts = createAccounts(2);
+        run(thread -> {
+            Account source = accounts[thread % 2];
+            Account target = accounts[(thread + 1) % 2];
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            for (int i = 0; i < TRANSFERS_PER_THREAD; i++) {
+                transferService.transfer(source, target, random.nextInt(1, 100));
+            }
+        });
+        assertEquals(INITIAL_BALANCE * accounts.length, total(accounts));
+    }
+
+    /**
+     * Every thread moves money between random accounts, with deposits mixed in, and the total must equal the
+     * starting balances plus the deposits.
+     */
+    @Test(timeout = 60_000)
+    public void randomTransfersConserveMoney() throws Exception {
+        Account[] accounts = createAccounts(16);
+        long[] deposited = new long[THREADS];
+        run(thread -> {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            for (int i = 0; i < TRANSFERS_PER_THREAD; i++) {
+                Account source = accounts[random.nextInt(accounts.length)];
+                Account target = accounts[random.nextInt(accounts.length)];
+                if (i % 100 == 0) {
+                    transferService.deposit(target, 1);
+                    deposited[thread]++;
+                } else {
+                    transferService.transfer(source, target, random.nextInt(1, 10_000));
+                }
+            }
+        });
+        long expected = INITIAL_BALANCE * accounts.length;
+        for (long amount : deposited) {
+            expected += amount;
+        }
+        assertEquals(expected, total(accounts));
+        for (Account account : accounts) {
+            assertTrue(account.getNumber() + " went below zero", account.getBalance() >= 0);
+        }
+    }
+
+    /**
+     * Work done by one of the test threads.
+     */
+    private interface Worker {
+        void run(int thread) throws Exception;
+    }
+
+    /**
+     * Starts every thread at once and waits for all of them, rethrowing the first failure.
+     */
+    private static void run(Worker worker) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        try {
+            List<Future<?>> results = new ArrayList<>(THREADS);
+            for (int i = 0; i < THREADS; i++) {
+                int thread = i;
+                results.add(pool.submit(() -> {
+                    start.await();
+                    worker.run(thread);
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> result : results) {
+                result.get();
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static Account[] createAccounts(int count) {
+        Account[] accounts = new Account[count];
+        for (int i = 0; i < count; i++) {
+            accounts[i] = new Account(CardNumbers.unpack(Account.cardNumberFor(i)), "1234", INITIAL_BALANCE);
+        }
+        return accounts;
+    }
+
+    private static long total(Account[] accounts) {
+        long total = 0;
+        for (Account account : accounts) {
+            total += account.getBalance();
+        }
+        return total;
+    }
+}